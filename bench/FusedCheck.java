@@ -0,0 +1,210 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Checks that integrating coverage files of different bin sizes in one pass (Integrator -w) gives the same output
+ * as calculating each file's cMBFs with the Calculator, then integrating them
+ * Generates a synthetic genome (see Synthetic) as a track on each bin size (10 and 20 bp by default) over the same chromosomes,
+ * then compares the outputs at each window size and thread count, each run in a new JVM
+ * Exits with 1 if any output differs
+ */
+public class FusedCheck {
+	private static long genomeBins = 2000000;
+	private static int nChroms = 4;
+	private static int[] binSizes = {10, 20};
+	private static int[] windowSizes = {1000, 10000};
+	private static int[] threadCounts = {1, 4};
+	private static long seed = 1;
+	private static boolean keep = false;
+
+	public static void main(String[] args) throws Exception {
+		parseOptions(args);
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "fusedcheck-" + System.nanoTime());
+		dir.mkdir();
+		System.out.println("bins " + genomeBins + " of " + binSizes[0] + " bp, " + nChroms + " chromosomes, bin sizes " + Arrays.toString(binSizes)
+				+ ", seed " + seed + ", work directory " + dir.getPath());
+
+		boolean same = true;
+		try {
+			//-- Generate a track on each bin size, over the same chromosomes --
+			long[] bins = Synthetic.chromBins(nChroms, genomeBins, 1);
+			File[] coverage = new File[binSizes.length];
+			for (int i = 0; i < binSizes.length; i++) {
+				long[] b = new long[bins.length];
+				for (int c = 0; c < bins.length; c++) {
+					b[c] = Math.max(1, bins[c] * binSizes[0] / binSizes[i]);
+				}
+				coverage[i] = new File(dir, "track" + i + ".bed");
+				new Synthetic("wgs", seed + i).write(coverage[i], b, binSizes[i], false);
+			}
+
+			for (int w : windowSizes) {
+				//-- Calculator, then Integrator --
+				ArrayList<String> integrator = new ArrayList<String>();
+				File expected = new File(dir, "expected_" + w + ".bed");
+				integrator.addAll(Arrays.asList("Integrator", expected.getPath()));
+				for (int i = 0; i < coverage.length; i++) {
+					String name = "cmbf_" + w;
+					run(new String[] {"Calculator", "-i", coverage[i].getPath(), "-w", String.valueOf(w), "-n", String.valueOf(binSizes[i]), "-s", "-o", name});
+					String base = coverage[i].getPath().substring(0, coverage[i].getPath().length() - 4);
+					integrator.add(base + "_out" + File.separator + name + "_allChr.bed");
+				}
+				run(integrator.toArray(new String[0]));
+
+				//-- Integrator -w, in one pass --
+				for (int t : threadCounts) {
+					ArrayList<String> fused = new ArrayList<String>();
+					File actual = new File(dir, "fused_" + w + "_" + t + ".bed");
+					fused.addAll(Arrays.asList("Integrator", "-w", String.valueOf(w), "-t", String.valueOf(t), actual.getPath()));
+					for (File f : coverage) {
+						fused.add(f.getPath());
+					}
+					run(fused.toArray(new String[0]));
+					String diff = compare(expected, actual);
+					System.out.println("window " + w + ", threads " + t + ": " + (diff == null ? "same" : diff));
+					same &= diff == null;
+				}
+			}
+		} finally {
+			if (!keep) {
+				delete(dir);
+			}
+		}
+		if (!same) {
+			System.exit(1);
+		}
+	}
+
+	/** Run the Calculator or Integrator in a new JVM, with the same classpath, exiting if it fails */
+	private static void run(String[] toolArgs) throws IOException, InterruptedException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.addAll(Arrays.asList(toolArgs));
+
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		StringBuilder output = new StringBuilder();
+		for (String line = r.readLine(); line != null; line = r.readLine()) {
+			output.append(line).append('\n');
+		}
+		r.close();
+		if (p.waitFor() != 0) {
+			System.err.println("Run failed: " + command + "\n" + output);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compare two outputs line by line
+	 * @return null if they are the same, else the first line that differs
+	 */
+	private static String compare(File expected, File actual) throws IOException {
+		BufferedReader e = new BufferedReader(new InputStreamReader(new FileInputStream(expected), StandardCharsets.ISO_8859_1));
+		BufferedReader a = new BufferedReader(new InputStreamReader(new FileInputStream(actual), StandardCharsets.ISO_8859_1));
+		try {
+			for (long n = 1; ; n++) {
+				String le = e.readLine();
+				String la = a.readLine();
+				if (le == null && la == null) {
+					return null;
+				}
+				if (le == null || !le.equals(la)) {
+					return "differs at line " + n + ": expected " + le + ", got " + la;
+				}
+			}
+		} finally {
+			e.close();
+			a.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/** Parse commandline options using CLI */
+	private static void parseOptions(String[] args) {
+		Options options = new Options();
+		String[][] opts = {
+				{"g", "genomeBins", "bins in the genome, of the first bin size", "2000000"},
+				{"c", "chroms", "number of chromosomes", "4"},
+				{"n", "binSizes", "bin size (bp) of each track, comma separated, each a multiple of the first", "10,20"},
+				{"w", "windowSizes", "window sizes (bp), comma separated, each a multiple of every bin size", "1000,10000"},
+				{"t", "threads", "thread counts of Integrator -w, comma separated", "1,4"},
+				{"s", "seed", "random seed", "1"}};
+		for (String[] o : opts) {
+			Option option = new Option(o[0], o[1], true, "[opt] " + o[2] + ", default: " + o[3]);
+			option.setRequired(false);
+			options.addOption(option);
+		}
+		Option keepOption = new Option("K", "keep", false, "[opt] keep the work directory (generated coverage and outputs)");
+		keepOption.setRequired(false);
+		options.addOption(keepOption);
+		options.addOption(new Option("h", "help", false, ""));
+
+		CommandLine cmd = null;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("FusedCheck", options);
+			System.exit(1);
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp("FusedCheck", options);
+			System.exit(0);
+		}
+
+		if (cmd.hasOption("g")) {
+			genomeBins = Long.parseLong(cmd.getOptionValue("g"));
+		}
+		if (cmd.hasOption("c")) {
+			nChroms = Integer.parseInt(cmd.getOptionValue("c"));
+		}
+		if (cmd.hasOption("n")) {
+			binSizes = ints(cmd.getOptionValue("n"));
+		}
+		if (cmd.hasOption("w")) {
+			windowSizes = ints(cmd.getOptionValue("w"));
+		}
+		if (cmd.hasOption("t")) {
+			threadCounts = ints(cmd.getOptionValue("t"));
+		}
+		if (cmd.hasOption("s")) {
+			seed = Long.parseLong(cmd.getOptionValue("s"));
+		}
+		keep = cmd.hasOption("K");
+	}
+
+	private static int[] ints(String s) {
+		String[] parts = s.split(",");
+		int[] v = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			v[i] = Integer.parseInt(parts[i].trim());
+		}
+		return v;
+	}
+
+}
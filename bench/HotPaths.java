@@ -0,0 +1,472 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Microbenchmarks of the hot paths, over synthetic coverage (see Synthetic)
+ * window - moving the window and calculating each bin's cMBF (IntWindow, SlidingMedian, CmbfTransform), from counts in memory
+ * cmbf - calculating cMBFs from read counts and noise estimates in memory (CmbfTransform)
+ * parse - reading coverage lines (BedReader)
+ * calculate - a chromosome's cMBFs from its coverage file, as the Calculator does (BinReader, WindowWalk)
+ * format - writing cMBF lines (BedGraphWriter)
+ * integrate - sweeping cMBF files together and multiplying (IntegrateChrom)
+ * Each case is run in a new JVM (see fork), for warm-up iterations, then timed over measured iterations, with the same data for the same seed
+ * so the code compiled and profiled for one case does not carry over to the next
+ * An op is an output bin, or a line for parse and format (fewer lines than bins for sparse chip coverage)
+ * format and integrate write the same synthetic cMBFs whatever the count distribution
+ */
+public class HotPaths {
+	private static String[] cases = {"cmbf", "window", "parse", "calculate", "format", "integrate"};
+	private static int[] windowSizes = {1000, 10000};
+	/** Relative errors of the approximate median (0 for the exact median) */
+	private static double[] medianErrors = {0};
+	/** exps of the cMBF transform: math (Math.exp) or table (tabulated) */
+	private static String[] exps = {"math", "table"};
+	private static int[] binSizes = {10};
+	private static String[] dists = {"wgs", "chip"};
+	private static int[] trackCounts = {2, 6};
+	private static int bins = 1000000;
+	/** Bins whose cMBFs are calculated together, as in WindowWalk */
+	private static final int BLOCK = 256;
+	private static int warmup = 3;
+	private static int iterations = 5;
+	private static long seed = 1;
+	/** Options of the JVMs run */
+	private static String[] jvmOptions = {};
+	/** Options given, passed on to the JVM of each case */
+	private static String[] args;
+	/** Case run by this JVM (case, window, median error, exp, bin size, dist, tracks, directory), null in the JVM running them all */
+	private static String[] forked;
+
+	/** Sum of the values produced, printed so no work is optimized away */
+	private static double checksum = 0;
+
+	public static void main(String[] args) throws Exception {
+		parseOptions(args);
+		IntStats.setdefZero(0.5);
+		if (forked != null) {
+			runForked();
+			return;
+		}
+
+		System.out.println("java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") + "), "
+				+ Runtime.getRuntime().availableProcessors() + " processors, max heap " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+		System.out.println("bins " + bins + ", warm-up " + warmup + ", iterations " + iterations + ", seed " + seed
+				+ ", JVM options " + Arrays.toString(jvmOptions));
+		System.out.println(String.format(Locale.ROOT, "%-10s %8s %6s %5s %6s %5s %6s %14s %10s", "case", "window", "median", "exp", "bin", "dist", "tracks", "Mops/s", "ns/op"));
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "hotpaths-" + System.nanoTime());
+		dir.mkdir();
+		try {
+			for (String c : cases) {
+				for (int binSize : binSizes) {
+					for (String dist : dists) {
+						if (c.equals("window") || c.equals("calculate")) {
+							for (int w : windowSizes) {
+								for (double e : medianErrors) {
+									for (String x : exps) {
+										fork(c, w, e, x, binSize, dist, 1, dir);
+									}
+								}
+							}
+						}
+						else if (c.equals("cmbf")) {
+							for (String x : exps) {
+								fork(c, 0, 0, x, binSize, dist, 1, dir);
+							}
+						}
+						else if (c.equals("integrate") && dist.equals(dists[0])) {
+							for (int k : trackCounts) {
+								fork(c, 0, 0, "math", binSize, "-", k, dir);
+							}
+						}
+						else if (c.equals("parse") || dist.equals(dists[0])) {
+							fork(c, 0, 0, "math", binSize, c.equals("parse") ? dist : "-", 1, dir);
+						}
+					}
+				}
+			}
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("checksum " + checksum);
+	}
+
+	/**
+	 * Run a case in a new JVM, with the same options and classpath, and print its line of results
+	 * The synthetic data files are kept in dir, so they are written once for all the cases using them
+	 */
+	private static void fork(String c, int w, double medianError, String exp, int binSize, String dist, int tracks, File dir)
+			throws IOException, InterruptedException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(Arrays.asList(jvmOptions));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("HotPaths");
+		command.add("--fork=" + c + "," + w + "," + medianError + "," + exp + "," + binSize + "," + dist + "," + tracks + "," + dir.getPath());
+		command.addAll(Arrays.asList(args));
+
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		StringBuilder output = new StringBuilder();
+		boolean ran = false;
+		for (String line = r.readLine(); line != null; line = r.readLine()) {
+			output.append(line).append('\n');
+			if (line.startsWith("checksum ")) {
+				checksum += Double.parseDouble(line.substring(9));
+				ran = true;
+			}
+			else if (line.startsWith(c + " ")) {
+				System.out.println(line);
+			}
+		}
+		r.close();
+		if (p.waitFor() != 0 || !ran) {
+			System.err.println("Run failed: " + command + "\n" + output);
+			System.exit(1);
+		}
+	}
+
+	/** Run the case this JVM was started for, then print the checksum for the JVM running them all */
+	private static void runForked() throws Exception {
+		double medianError = Double.parseDouble(forked[2]);
+		IntWindow.setMedianError(medianError);
+		CmbfTransform.setTabulated(forked[3].equals("table"));
+		run(forked[0], Integer.parseInt(forked[1]), medianError, Integer.parseInt(forked[4]), forked[5], Integer.parseInt(forked[6]),
+				new File(forked[7]));
+		System.out.println("checksum " + checksum);
+	}
+
+	/** Set up a case, then time it and print a line of results */
+	private static void run(String c, int w, double medianError, int binSize, String dist, int tracks, File dir) throws Exception {
+		Case bench = newCase(c, w, binSize, dist, tracks, dir);
+		for (int i = 0; i < warmup; i++) {
+			bench.run();
+		}
+		double[] rates = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			long t = System.nanoTime();
+			long ops = bench.run();
+			rates[i] = ops / ((System.nanoTime() - t) / 1e9);
+		}
+		double mean = 0;
+		for (double r : rates) {
+			mean += r / iterations;
+		}
+		double var = 0;
+		for (double r : rates) {
+			var += (r - mean) * (r - mean) / Math.max(1, iterations - 1);
+		}
+		System.out.println(String.format(Locale.ROOT, "%-10s %8s %6s %5s %6d %5s %6s %7.2f +- %4.2f %10.1f", c, w > 0 ? w : "-",
+				w == 0 ? "-" : medianError == 0 ? "exact" : String.valueOf(medianError),
+				w == 0 && !c.equals("cmbf") ? "-" : CmbfTransform.isTabulated() ? "table" : "math", binSize, dist,
+				c.equals("integrate") ? tracks : "-", mean / 1e6, Math.sqrt(var) / 1e6, 1e9 / mean));
+	}
+
+	/** A benchmark, run repeatedly over the same data */
+	private static abstract class Case {
+		/** Run once
+		 * @return number of bins (or lines) processed
+		 */
+		abstract long run() throws Exception;
+	}
+
+	private static Case newCase(String c, final int w, final int binSize, String dist, int tracks, File dir) throws IOException {
+		final Synthetic synthetic = new Synthetic(dist.equals("-") ? "wgs" : dist, seed);
+		if (c.equals("window")) {
+			final int[] counts = synthetic.counts(bins);
+			return new Case() {
+				@Override
+				long run() throws Exception {
+					IntWindow window = new IntWindow("chr1", w, binSize, 1, 0);
+					double[] rc = new double[BLOCK];
+					double[] noise = new double[BLOCK];
+					double[] cmbf = new double[BLOCK];
+					int n = 0;
+					double sum = 0;
+					long done = 0;
+					int i = 0;
+					while (i < counts.length) {
+						if (window.toFill() > 0) {
+							window.insert(i * binSize, (i + 1) * binSize, counts[i]);
+							i++;
+						}
+						if (window.full()) {
+							rc[n] = window.getIndexReadCount();
+							noise[n] = window.calcNoise();
+							n++;
+							window.incrCenter();
+							done++;
+						}
+						if (n == BLOCK || i == counts.length) {
+							CmbfTransform.transform(rc, noise, cmbf, n);
+							for (int j = 0; j < n; j++) {
+								sum += cmbf[j];
+							}
+							n = 0;
+						}
+					}
+					checksum += sum;
+					return done;
+				}
+			};
+		}
+
+		if (c.equals("cmbf")) {
+			int[] counts = synthetic.counts(bins);
+			final int blocks = (bins + BLOCK - 1) / BLOCK;
+			final double[][] rc = new double[blocks][BLOCK];
+			final double[][] noise = new double[blocks][BLOCK];
+			for (int i = 0; i < bins; i++) {
+				rc[i / BLOCK][i % BLOCK] = IntStats.readCountOf(counts[i]);
+				// a noise estimate from the same distribution
+				noise[i / BLOCK][i % BLOCK] = IntStats.readCountOf(counts[(i + bins / 2) % bins]);
+			}
+			final double[] cmbf = new double[BLOCK];
+			return new Case() {
+				@Override
+				long run() {
+					double sum = 0;
+					for (int b = 0; b < blocks; b++) {
+						int n = Math.min(BLOCK, bins - b * BLOCK);
+						CmbfTransform.transform(rc[b], noise[b], cmbf, n);
+						for (int j = 0; j < n; j++) {
+							sum += cmbf[j];
+						}
+					}
+					checksum += sum;
+					return bins;
+				}
+			};
+		}
+
+		final double[] values = cmbfs(bins, seed);
+		if (c.equals("format")) {
+			return new Case() {
+				@Override
+				long run() throws IOException {
+					BedGraphWriter pw = new BedGraphWriter();
+					for (int i = 0; i < values.length; i++) {
+						pw.write("chr1", i * binSize, (i + 1) * binSize, values[i]);
+					}
+					checksum += pw.getPosition();
+					pw.close();
+					return values.length;
+				}
+			};
+		}
+		if (c.equals("integrate")) {
+			final ChromIndex[] indexes = new ChromIndex[tracks];
+			final ChromIndex.Entry[] entries = new ChromIndex.Entry[tracks];
+			for (int k = 0; k < tracks; k++) {
+				File f = new File(dir, "cmbf_" + binSize + "_" + k + ".bed");
+				if (!f.exists()) {
+					double[] v = cmbfs(bins, seed + k);
+					BedGraphWriter pw = new BedGraphWriter(f);
+					for (int i = 0; i < v.length; i++) {
+						pw.write("chr1", i * binSize, (i + 1) * binSize, v[i]);
+					}
+					pw.close();
+				}
+				indexes[k] = ChromIndex.build(f, 1, true);
+				entries[k] = indexes[k].getEntries().get(0);
+			}
+			return new Case() {
+				@Override
+				long run() throws IOException {
+					Discard out = new Discard();
+					new IntegrateChrom(indexes, entries, "chr1", null, out).call();
+					checksum += out.sum;
+					return out.lines;
+				}
+			};
+		}
+		final File coverage = new File(dir, dist + "_" + binSize + ".bed");
+		if (!coverage.exists()) {
+			synthetic.write(coverage, new long[] {bins}, binSize, dist.equals("chip"));
+		}
+		if (c.equals("parse")) {
+			return new Case() {
+				@Override
+				long run() throws IOException {
+					BedReader reader = new BedReader(coverage);
+					long lines = 0;
+					while (reader.next()) {
+						checksum += reader.getCount();
+						lines++;
+					}
+					reader.close();
+					return lines;
+				}
+			};
+		}
+		if (c.equals("calculate")) {
+			final ChromIndex.Entry entry = ChromIndex.build(coverage, 1).getEntries().get(0);
+			return new Case() {
+				@Override
+				long run() throws IOException {
+					BinReader reader = new BinReader(coverage, entry.getFrom(), entry.getTo(), entry.getIntervalSize());
+					WindowWalk walk = WindowWalk.ofChrom(reader, w, entry.getIntervalSize(), 1);
+					long done = 0;
+					while (walk.next()) {
+						checksum += walk.getValue();
+						done++;
+					}
+					reader.close();
+					return done;
+				}
+			};
+		}
+
+		throw new IllegalArgumentException("Unknown case: " + c);
+	}
+
+	/** cMBF-like values (0-1, mostly low) */
+	private static double[] cmbfs(int n, long s) {
+		Random random = new Random(s);
+		double[] v = new double[n];
+		for (int i = 0; i < n; i++) {
+			double z = random.nextGaussian() * 1.5;
+			v[i] = 1 - Math.exp(-z * z / 2);
+		}
+		return v;
+	}
+
+	/** Counts the lines written, and sums their values */
+	private static class Discard implements TrackWriter {
+		private long lines = 0;
+		private double sum = 0;
+
+		@Override
+		public void write(String cN, int s, int e, double v) {
+			lines++;
+			sum += v;
+		}
+
+		@Override
+		public long getPosition() {
+			return 0;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** Parse commandline options using CLI */
+	private static void parseOptions(String[] args) {
+		Options options = new Options();
+		String[][] opts = {
+				{"w", "windowSizes", "window sizes (bp), comma separated", "1000,10000"},
+				{"a", "medianErrors", "relative errors of the approximate median for window and calculate (0 for the exact median), comma separated", "0"},
+				{"x", "exps", "exps of the cMBF transform for cmbf, window and calculate (math for Math.exp, table for tabulated), comma separated", "math,table"},
+				{"n", "binSizes", "bin sizes (bp), comma separated", "10"},
+				{"d", "dists", "count distributions (wgs, chip), comma separated", "wgs,chip"},
+				{"k", "tracks", "numbers of tracks integrated, comma separated", "2,6"},
+				{"b", "bins", "bins per chromosome", "1000000"},
+				{"W", "warmup", "warm-up iterations", "3"},
+				{"i", "iterations", "measured iterations", "5"},
+				{"s", "seed", "random seed", "1"},
+				{"j", "jvmOptions", "options of the JVM each case is run in, space separated, e.g. \"-Xms2g -Xmx2g\"", "none"}};
+		for (String[] o : opts) {
+			Option option = new Option(o[0], o[1], true, "[opt] " + o[2] + ", default: " + o[3]);
+			option.setRequired(false);
+			options.addOption(option);
+		}
+		Option forkOption = new Option(null, "fork", true, "case run in this JVM, given by the JVM running them all");
+		forkOption.setRequired(false);
+		options.addOption(forkOption);
+		options.addOption(new Option("h", "help", false, ""));
+
+		String syntax = "HotPaths [options] [cmbf|window|parse|calculate|format|integrate ...]";
+		CommandLine cmd = null;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp(syntax, options);
+			System.exit(1);
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp(syntax, options);
+			System.exit(0);
+		}
+
+		if (cmd.hasOption("w")) {
+			windowSizes = ints(cmd.getOptionValue("w"));
+		}
+		if (cmd.hasOption("a")) {
+			String[] parts = cmd.getOptionValue("a").split(",");
+			medianErrors = new double[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				medianErrors[i] = Double.parseDouble(parts[i].trim());
+			}
+		}
+		if (cmd.hasOption("x")) {
+			exps = cmd.getOptionValue("x").split(",");
+		}
+		if (cmd.hasOption("n")) {
+			binSizes = ints(cmd.getOptionValue("n"));
+		}
+		if (cmd.hasOption("d")) {
+			dists = cmd.getOptionValue("d").split(",");
+		}
+		if (cmd.hasOption("k")) {
+			trackCounts = ints(cmd.getOptionValue("k"));
+		}
+		if (cmd.hasOption("b")) {
+			bins = Integer.parseInt(cmd.getOptionValue("b"));
+		}
+		if (cmd.hasOption("W")) {
+			warmup = Integer.parseInt(cmd.getOptionValue("W"));
+		}
+		if (cmd.hasOption("i")) {
+			iterations = Integer.parseInt(cmd.getOptionValue("i"));
+		}
+		if (cmd.hasOption("s")) {
+			seed = Long.parseLong(cmd.getOptionValue("s"));
+		}
+		if (cmd.hasOption("j")) {
+			jvmOptions = cmd.getOptionValue("j").trim().split("\\s+");
+		}
+		if (cmd.hasOption("fork")) {
+			forked = cmd.getOptionValue("fork").split(",", 8);
+		}
+		HotPaths.args = args;
+		if (!cmd.getArgList().isEmpty()) {
+			cases = cmd.getArgList().toArray(new String[0]);
+		}
+	}
+
+	private static int[] ints(String s) {
+		String[] parts = s.split(",");
+		int[] v = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			v[i] = Integer.parseInt(parts[i].trim());
+		}
+		return v;
+	}
+
+
+}
@@ -0,0 +1,304 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * End-to-end scaling benchmark: generates a synthetic genome (see Synthetic), then runs the Calculator and Integrator
+ * on it at each thread count and window size, each run in a new JVM limited to that many processors (-XX:ActiveProcessorCount)
+ * Reports the run time, bins per second, speedup and efficiency over the first thread count, each phase's time and the peak heap and RSS (see ScalingRun)
+ */
+public class Scaling {
+	private static long genomeBins = 20000000;
+	private static int nChroms = 24;
+	private static double skew = 1;
+	private static int binSize = 10;
+	private static String dist = "wgs";
+	private static int[] windowSizes = {10000};
+	private static int[] threadCounts = null;
+	private static int nTracks = 2;
+	private static String[] tools = {"calculator", "integrator", "fused"};
+	private static int repeats = 1;
+	private static String[] jvmOptions = {};
+	private static long seed = 1;
+	private static boolean keep = false;
+
+	private static final Pattern PHASE = Pattern.compile("^(.+) in ([0-9.]+) s\\.?$");
+	private static final Pattern RUN = Pattern.compile("^Run in ([0-9.]+) s, peak heap (-?[0-9]+) bytes, peak RSS (-?[0-9]+) kB$");
+
+	public static void main(String[] args) throws Exception {
+		parseOptions(args);
+		if (threadCounts == null) {
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			int max = Runtime.getRuntime().availableProcessors();
+			for (int i = 1; i < max; i *= 2) {
+				t.add(i);
+			}
+			t.add(max);
+			threadCounts = new int[t.size()];
+			for (int i = 0; i < t.size(); i++) {
+				threadCounts[i] = t.get(i);
+			}
+		}
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "scaling-" + System.nanoTime());
+		dir.mkdir();
+		System.out.println("java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " processors, child JVM options "
+				+ Arrays.toString(jvmOptions) + ", work directory " + dir.getPath());
+
+		//-- Generate the coverage of each track --
+		long[] bins = Synthetic.chromBins(nChroms, genomeBins, skew);
+		File[] coverage = new File[Math.max(1, nTracks)];
+		long t = System.nanoTime();
+		for (int i = 0; i < coverage.length; i++) {
+			coverage[i] = new File(dir, "track" + i + ".bed");
+			new Synthetic(dist, seed + i).write(coverage[i], bins, binSize, dist.equals("chip"));
+		}
+		System.out.println(String.format(Locale.ROOT, "Generated %d track(s) of %d bins (%d chromosomes, %d to %d bins, %s, %d bp bins, %d MB each) in %.1f s",
+				coverage.length, genomeBins, nChroms, bins[nChroms - 1], bins[0], dist, binSize, coverage[0].length() >> 20, (System.nanoTime() - t) / 1e9));
+		System.out.println(String.format(Locale.ROOT, "%-11s %7s %7s %9s %8s %7s %6s %8s %8s  %s", "tool", "window", "threads", "run s", "Mbins/s",
+				"speedup", "eff", "heap MB", "RSS MB", "phases (s)"));
+
+		try {
+			for (int w : windowSizes) {
+				for (String tool : tools) {
+					if (!tool.equals("calculator") && nTracks < 1) {
+						continue;
+					}
+					ArrayList<String> cmbfs = null;
+					if (tool.equals("integrator")) {
+						cmbfs = calculateTracks(coverage, w);
+					}
+					double base = 0;
+					for (int threads : threadCounts) {
+						Result best = null;
+						for (int r = 0; r < repeats; r++) {
+							Result result = run(threads, args(tool, w, coverage, cmbfs, dir), dir);
+							if (best == null || result.seconds < best.seconds) {
+								best = result;
+							}
+						}
+						if (base == 0) {
+							base = best.seconds;
+						}
+						double speedup = base / best.seconds;
+						StringBuilder phases = new StringBuilder();
+						for (Map.Entry<String, Double> p : best.phases.entrySet()) {
+							phases.append(String.format(Locale.ROOT, "%s=%.2f ", p.getKey(), p.getValue()));
+						}
+						System.out.println(String.format(Locale.ROOT, "%-11s %7d %7d %9.2f %8.2f %7.2f %6.2f %8d %8s  %s", tool, w, threads, best.seconds,
+								genomeBins / best.seconds / 1e6, speedup, speedup * threadCounts[0] / threads, best.heap >> 20,
+								best.rss < 0 ? "-" : String.valueOf(best.rss >> 10), phases.toString().trim()));
+					}
+				}
+			}
+		} finally {
+			if (!keep) {
+				delete(dir);
+			}
+		}
+	}
+
+	/** Calculate the cMBFs of every track (with all processors, not timed), as input for the Integrator */
+	private static ArrayList<String> calculateTracks(File[] coverage, int w) throws IOException, InterruptedException {
+		ArrayList<String> cmbfs = new ArrayList<String>();
+		for (File f : coverage) {
+			String base = f.getPath().substring(0, f.getPath().length() - 4);
+			run(Runtime.getRuntime().availableProcessors(), new String[] {"Calculator", "-i", f.getPath(), "-w", String.valueOf(w), "-n", String.valueOf(binSize), "-s", "-o", "cmbf"}, null);
+			cmbfs.add(base + "_out" + File.separator + "cmbf_allChr.bed");
+		}
+		return cmbfs;
+	}
+
+	/** Arguments of ScalingRun for a tool */
+	private static String[] args(String tool, int w, File[] coverage, ArrayList<String> cmbfs, File dir) {
+		ArrayList<String> a = new ArrayList<String>();
+		if (tool.equals("calculator")) {
+			a.addAll(Arrays.asList("Calculator", "-i", coverage[0].getPath(), "-w", String.valueOf(w), "-n", String.valueOf(binSize), "-s"));
+		}
+		else if (tool.equals("integrator")) {
+			a.add("Integrator");
+			a.addAll(missingValue());
+			a.add(new File(dir, "integrated.bed").getPath());
+			a.addAll(cmbfs);
+		}
+		else if (tool.equals("fused")) {
+			a.addAll(Arrays.asList("Integrator", "-w", String.valueOf(w), "-n", String.valueOf(binSize)));
+			a.addAll(missingValue());
+			a.add(new File(dir, "fused.bed").getPath());
+			for (File f : coverage) {
+				a.add(f.getPath());
+			}
+		}
+		else {
+			System.err.println("Unknown tool: " + tool);
+			System.exit(1);
+		}
+		return a.toArray(new String[0]);
+	}
+
+	/** Sparse tracks cover different regions, so regions missing from a track take a cMBF of 0 */
+	private static List<String> missingValue() {
+		return dist.equals("chip") ? Arrays.asList("-d", "0") : new ArrayList<String>();
+	}
+
+	/** Time and peak memory of a run, and its phases */
+	private static class Result {
+		private double seconds;
+		private long heap;
+		private long rss;
+		private LinkedHashMap<String, Double> phases = new LinkedHashMap<String, Double>();
+	}
+
+	/** Run ScalingRun in a new JVM with the given number of processors, and read its output */
+	private static Result run(int threads, String[] runArgs, File dir) throws IOException, InterruptedException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-XX:ActiveProcessorCount=" + threads);
+		command.addAll(Arrays.asList(jvmOptions));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("ScalingRun");
+		command.addAll(Arrays.asList(runArgs));
+
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		Result result = new Result();
+		StringBuilder output = new StringBuilder();
+		boolean ran = false;
+		for (String line = r.readLine(); line != null; line = r.readLine()) {
+			output.append(line).append('\n');
+			Matcher m = RUN.matcher(line);
+			if (m.matches()) {
+				result.seconds = Double.parseDouble(m.group(1));
+				result.heap = Long.parseLong(m.group(2));
+				result.rss = Long.parseLong(m.group(3));
+				ran = true;
+				continue;
+			}
+			m = PHASE.matcher(line);
+			if (m.matches() && !m.group(1).startsWith("Completed")) {
+				result.phases.put(m.group(1), Double.parseDouble(m.group(2)));
+			}
+		}
+		r.close();
+		if (p.waitFor() != 0 || !ran) {
+			System.err.println("Run failed: " + command + "\n" + output);
+			System.exit(1);
+		}
+		return result;
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/** Parse commandline options using CLI */
+	private static void parseOptions(String[] args) {
+		Options options = new Options();
+		String[][] opts = {
+				{"g", "genomeBins", "bins in the genome", "20000000"},
+				{"c", "chroms", "number of chromosomes", "24"},
+				{"k", "skew", "skew of chromosome sizes (0 for equal sizes, each chromosome's share falls as 1/rank^skew)", "1"},
+				{"n", "binSize", "bin size (bp)", "10"},
+				{"d", "dist", "count distribution (wgs, chip)", "wgs"},
+				{"w", "windowSizes", "window sizes (bp), comma separated", "10000"},
+				{"t", "threads", "thread counts, comma separated", "1, 2, 4, ... up to the number of processors"},
+				{"T", "tracks", "tracks integrated (0 runs only the Calculator)", "2"},
+				{"m", "tools", "tools run (calculator, integrator, fused), comma separated", "calculator,integrator,fused"},
+				{"r", "repeats", "runs of each case, the fastest reported", "1"},
+				{"x", "jvmOptions", "options of the JVMs run, space separated, e.g. \"-Xmx8g\"", "none"},
+				{"s", "seed", "random seed", "1"}};
+		for (String[] o : opts) {
+			Option option = new Option(o[0], o[1], true, "[opt] " + o[2] + ", default: " + o[3]);
+			option.setRequired(false);
+			options.addOption(option);
+		}
+		Option keepOption = new Option("K", "keep", false, "[opt] keep the work directory (generated coverage and outputs)");
+		keepOption.setRequired(false);
+		options.addOption(keepOption);
+		options.addOption(new Option("h", "help", false, ""));
+
+		CommandLine cmd = null;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("Scaling", options);
+			System.exit(1);
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp("Scaling", options);
+			System.exit(0);
+		}
+
+		if (cmd.hasOption("g")) {
+			genomeBins = Long.parseLong(cmd.getOptionValue("g"));
+		}
+		if (cmd.hasOption("c")) {
+			nChroms = Integer.parseInt(cmd.getOptionValue("c"));
+		}
+		if (cmd.hasOption("k")) {
+			skew = Double.parseDouble(cmd.getOptionValue("k"));
+		}
+		if (cmd.hasOption("n")) {
+			binSize = Integer.parseInt(cmd.getOptionValue("n"));
+		}
+		if (cmd.hasOption("d")) {
+			dist = cmd.getOptionValue("d");
+		}
+		if (cmd.hasOption("w")) {
+			windowSizes = ints(cmd.getOptionValue("w"));
+		}
+		if (cmd.hasOption("t")) {
+			threadCounts = ints(cmd.getOptionValue("t"));
+		}
+		if (cmd.hasOption("T")) {
+			nTracks = Integer.parseInt(cmd.getOptionValue("T"));
+		}
+		if (cmd.hasOption("m")) {
+			tools = cmd.getOptionValue("m").split(",");
+		}
+		if (cmd.hasOption("r")) {
+			repeats = Integer.parseInt(cmd.getOptionValue("r"));
+		}
+		if (cmd.hasOption("x")) {
+			jvmOptions = cmd.getOptionValue("x").trim().split("\\s+");
+		}
+		if (cmd.hasOption("s")) {
+			seed = Long.parseLong(cmd.getOptionValue("s"));
+		}
+		keep = cmd.hasOption("K");
+	}
+
+	private static int[] ints(String s) {
+		String[] parts = s.split(",");
+		int[] v = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			v[i] = Integer.parseInt(parts[i].trim());
+		}
+		return v;
+	}
+
+}
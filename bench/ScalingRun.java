@@ -0,0 +1,61 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the Calculator or Integrator in this JVM (started by Scaling), then prints its time and peak memory:
+ * the sum of the heap pools' peaks (an upper bound on the heap used at once) and the peak resident set size (VmHWM, Linux only)
+ */
+public class ScalingRun {
+
+	public static void main(String[] args) throws Exception {
+		String[] toolArgs = Arrays.copyOfRange(args, 1, args.length);
+		long t = System.nanoTime();
+		if (args[0].equals("Calculator")) {
+			Calculator.main(toolArgs);
+		}
+		else if (args[0].equals("Integrator")) {
+			Integrator.main(toolArgs);
+		}
+		else {
+			System.err.println("Unknown tool: " + args[0]);
+			System.exit(1);
+		}
+		double seconds = (System.nanoTime() - t) / 1e9;
+
+		long heap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				heap += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.println(String.format(Locale.ROOT, "Run in %.3f s, peak heap %d bytes, peak RSS %d kB", seconds, heap, peakRss()));
+	}
+
+	/** Peak resident set size in kB, from /proc/self/status, -1 if not known */
+	private static long peakRss() {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				for (String line = r.readLine(); line != null; line = r.readLine()) {
+					if (line.startsWith("VmHWM:")) {
+						return Long.parseLong(line.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			// not Linux
+		} catch (NumberFormatException e) {
+			// unexpected format
+		}
+		return -1;
+	}
+
+}
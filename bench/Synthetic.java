@@ -0,0 +1,117 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic coverage, the same for the same seed
+ * "wgs" is dense whole genome sequencing coverage (every bin around a mean depth),
+ * "chip" is sparse ChIP-seq coverage (mostly zero or low background, with peaks of high counts)
+ */
+class Synthetic {
+	/** Mean depth of wgs coverage */
+	private static final int WGS_DEPTH = 30;
+	/** Mean bins between the peaks of chip coverage */
+	private static final int PEAK_SPACING = 2000;
+
+	private Random random;
+	private String dist;
+	/** Bins left in the current chip peak */
+	private int peakLeft;
+	private int peakCount;
+
+	/** Constructor
+	 * @param d - count distribution, wgs or chip
+	 * @param seed - random seed
+	 */
+	public Synthetic(String d, long seed) {
+		if (!d.equals("wgs") && !d.equals("chip")) {
+			throw new IllegalArgumentException("Count distribution must be wgs or chip: " + d);
+		}
+		dist = d;
+		random = new Random(seed);
+		peakLeft = 0;
+	}
+
+	/** Read count of the next bin */
+	public int next() {
+		if (dist.equals("wgs")) {
+			return Math.max(0, (int) Math.round(WGS_DEPTH + Math.sqrt(WGS_DEPTH) * random.nextGaussian()));
+		}
+		if (peakLeft == 0 && random.nextInt(PEAK_SPACING) == 0) {
+			peakLeft = 20 + random.nextInt(80);
+			peakCount = 20 + random.nextInt(180);
+		}
+		if (peakLeft > 0) {
+			peakLeft--;
+			return Math.max(1, peakCount + (int) (5 * random.nextGaussian()));
+		}
+		int r = random.nextInt(10);
+		return r < 6 ? 0 : r < 9 ? 1 : 2;
+	}
+
+	/** Read counts of n bins */
+	public int[] counts(int n) {
+		int[] c = new int[n];
+		for (int i = 0; i < n; i++) {
+			c[i] = next();
+		}
+		return c;
+	}
+
+	/**
+	 * Chromosome sizes of a genome, the i-th chromosome's share falling as 1 / (i + 1)^skew
+	 * @param nChroms - number of chromosomes
+	 * @param totalBins - bins in the genome
+	 * @param skew - 0 for chromosomes of the same size, 1 for sizes falling as 1 / (i + 1), ...
+	 * @return bins of each chromosome
+	 */
+	public static long[] chromBins(int nChroms, long totalBins, double skew) {
+		double[] share = new double[nChroms];
+		double sum = 0;
+		for (int i = 0; i < nChroms; i++) {
+			share[i] = Math.pow(i + 1, -skew);
+			sum += share[i];
+		}
+		long[] bins = new long[nChroms];
+		for (int i = 0; i < nChroms; i++) {
+			bins[i] = Math.max(1, Math.round(totalBins * share[i] / sum));
+		}
+		return bins;
+	}
+
+	/**
+	 * Write a coverage .bed file (chr start end read_count)
+	 * @param f - output file
+	 * @param bins - bins of each chromosome (named chr1, chr2, ...)
+	 * @param binSize - bin size (in bp)
+	 * @param sparse - true to write runs of equal counts as one line, leaving out zero counts (as bedtools genomecov -bg)
+	 */
+	public void write(File f, long[] bins, int binSize, boolean sparse) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 20);
+		for (int c = 0; c < bins.length; c++) {
+			String chrom = "chr" + (c + 1);
+			long runStart = 0;
+			int runCount = next();
+			for (long i = 1; i <= bins[c]; i++) {
+				int count = i < bins[c] ? next() : -1;
+				if (!sparse || count != runCount) {
+					if (runCount > 0 || !sparse) {
+						line(out, chrom, runStart * binSize, i * binSize, runCount);
+					}
+					runStart = i;
+					runCount = count;
+				}
+			}
+		}
+		out.close();
+	}
+
+	private static void line(OutputStream out, String chrom, long start, long end, int count) throws IOException {
+		out.write((chrom + "\t" + start + "\t" + end + "\t" + count + "\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+}
@@ -0,0 +1,269 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Writes bedGraph lines (chr start end value) formatted straight into a reusable byte buffer
+ * Written to a file in large blocks through a FileChannel or a stream (such as BgzfOutputStream),
+ * or held in memory (for tiles written out in order later)
+ */
+class BedGraphWriter implements TrackWriter {
+	/** Bytes held before writing to the file */
+	private static final int BLOCK_SIZE = 1 << 20;
+	/** Longest line written without a check (chromosome name excluded) */
+	private static final int MAX_LINE = 64;
+
+	/** True if values are written in full (as Double.toString) rather than to 5 decimal places */
+	private boolean full;
+
+	private OutputStream out;
+	/** File channel written to, null if written to a stream or held in memory */
+	private FileChannel channel;
+	/** True if written out, false if held in memory */
+	private boolean written;
+	/** Position written to in a shared channel, -1 if writing a file of its own */
+	private long position;
+	private byte[] buf;
+	private int len;
+
+	/** Last chromosome written, and its bytes */
+	private String chrom;
+	private byte[] chromBytes;
+
+	/** Constructor for writing to a file
+	 * @param f - output file
+	 * @throws FileNotFoundException - if the file cannot be written
+	 */
+	public BedGraphWriter(File f) throws FileNotFoundException {
+		this(f, false);
+	}
+
+	/** Constructor for writing to a file
+	 * @param f - output file
+	 * @param fl - true to write values in full (as Double.toString, the fewest digits that read back as the same double)
+	 * @throws FileNotFoundException - if the file cannot be written
+	 */
+	public BedGraphWriter(File f, boolean fl) throws FileNotFoundException {
+		full = fl;
+		FileOutputStream fos = new FileOutputStream(f);
+		out = fos;
+		channel = fos.getChannel();
+		written = true;
+		position = -1;
+		buf = new byte[BLOCK_SIZE + MAX_LINE];
+		len = 0;
+	}
+
+	/** Constructor for writing to a stream
+	 * @param os - stream written to (closed on close)
+	 * @param fl - true to write values in full (see BedGraphWriter(File, boolean))
+	 */
+	public BedGraphWriter(OutputStream os, boolean fl) {
+		full = fl;
+		out = os;
+		channel = null;
+		written = true;
+		position = -1;
+		buf = new byte[BLOCK_SIZE + MAX_LINE];
+		len = 0;
+	}
+
+	/** Constructor for writing to part of a file shared with other writers (the channel is not closed)
+	 * @param fc - channel of the shared file
+	 * @param pos - position to start writing at
+	 */
+	public BedGraphWriter(FileChannel fc, long pos) {
+		out = null;
+		channel = fc;
+		written = true;
+		position = pos;
+		buf = new byte[BLOCK_SIZE + MAX_LINE];
+		len = 0;
+	}
+
+	/** Constructor for holding the lines in memory */
+	public BedGraphWriter() {
+		out = null;
+		channel = null;
+		written = false;
+		position = -1;
+		buf = new byte[1 << 16];
+		len = 0;
+	}
+
+	/**
+	 * Write a line with the value to 5 decimal places (as printf "%s\t%d\t%d\t%.5f\n"), or in full
+	 * @param cN - chromosome
+	 * @param s - start
+	 * @param e - end
+	 * @param v - value
+	 */
+	@Override
+	public void write(String cN, int s, int e, double v) throws IOException {
+		writeChrom(cN);
+		buf[len++] = '\t';
+		writeInt(s);
+		buf[len++] = '\t';
+		writeInt(e);
+		buf[len++] = '\t';
+		if (full) {
+			String d = Double.toString(v);
+			for (int i = 0; i < d.length(); i++) {
+				buf[len++] = (byte) d.charAt(i);
+			}
+		}
+		else {
+			writeFixed5(v);
+		}
+		buf[len++] = '\n';
+	}
+
+	/** Write bytes already formatted as lines */
+	public void write(byte[] b, int off, int n) throws IOException {
+		if (written && len + n > BLOCK_SIZE) {
+			flush();
+		}
+		if (written && n > BLOCK_SIZE) {
+			writeFully(ByteBuffer.wrap(b, off, n));
+			return;
+		}
+		ensure(n);
+		System.arraycopy(b, off, buf, len, n);
+		len += n;
+	}
+
+	@Override
+	public long getPosition() {
+		return position + len;
+	}
+
+	/** Write the lines held in memory to the given writer (see TileOutput) */
+	public void writeTo(BedGraphWriter w) throws IOException {
+		w.write(buf, 0, len);
+	}
+
+	/** Make room for a line with the chromosome, writing the buffer out if it is full */
+	private void writeChrom(String cN) throws IOException {
+		if (cN != chrom) {
+			chrom = cN;
+			chromBytes = cN.getBytes(StandardCharsets.ISO_8859_1);
+		}
+		if (written && len + chromBytes.length > BLOCK_SIZE) {
+			flush();
+		}
+		ensure(chromBytes.length + MAX_LINE);
+		System.arraycopy(chromBytes, 0, buf, len, chromBytes.length);
+		len += chromBytes.length;
+	}
+
+	private void writeInt(long v) {
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long t = v / 10; t > 0; t /= 10) {
+			digits++;
+		}
+		for (int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		len += digits;
+	}
+
+	/**
+	 * Write the value rounded to 5 decimal places
+	 * Values close to halfway between two outputs go through String.format, so the digits always match "%.5f"
+	 */
+	private void writeFixed5(double v) {
+		long r = round5(v);
+		if (r >= 0) {
+			if (v < 0 || (v == 0 && 1 / v < 0)) {
+				buf[len++] = '-';
+			}
+			writeInt(r / 100000);
+			buf[len++] = '.';
+			long f = r % 100000;
+			for (int i = len + 4; i >= len; i--) {
+				buf[i] = (byte) ('0' + f % 10);
+				f /= 10;
+			}
+			len += 5;
+			return;
+		}
+		byte[] b = String.format(Locale.ROOT, "%.5f", v).getBytes(StandardCharsets.ISO_8859_1);
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	/**
+	 * Absolute value rounded to 5 decimal places, in units of 0.00001
+	 * @return the rounded value, or -1 if too close to halfway between two outputs (or too large) to be sure it matches "%.5f"
+	 */
+	static long round5(double v) {
+		double scaled = Math.abs(v) * 100000;
+		if (scaled < 1e9) {
+			long r = (long) scaled;
+			double frac = scaled - r;
+			if (Math.abs(frac - 0.5) > 1e-5) {
+				return frac > 0.5 ? r + 1 : r;
+			}
+		}
+		return -1;
+	}
+
+	/** Value as read back from its line, rounded to 5 decimal places (as "%.5f") */
+	static double rounded5(double v) {
+		long r = round5(v);
+		return r >= 0 ? Math.copySign(r / CmbfWriter.SCALE, v) : Double.parseDouble(String.format(Locale.ROOT, "%.5f", v));
+	}
+
+	/** Grow the buffer (held in memory, or a slow-path value) to fit n more bytes */
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] nb = new byte[Math.max(2 * buf.length, len + n)];
+			System.arraycopy(buf, 0, nb, 0, len);
+			buf = nb;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (written && len > 0) {
+			writeFully(ByteBuffer.wrap(buf, 0, len));
+			len = 0;
+		}
+	}
+
+	private void writeFully(ByteBuffer bb) throws IOException {
+		if (channel == null) {
+			out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+			return;
+		}
+		while (bb.hasRemaining()) {
+			if (position < 0) {
+				channel.write(bb);
+			}
+			else {
+				position += channel.write(bb, position);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		if (out != null) {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,408 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the data lines (chr start end read_count) of a coverage .bed file, memory-mapped or BGZF (see ByteSource)
+ * Can also read bedGraph lines (chr start end value), such as cMBF files
+ * Fields are parsed straight from the mapped bytes, with no String or array made per line
+ * !! Ignores any lines that do not start with a chromosome and an integer start (headers, etc) !!
+ * Lines that do must be whole data lines, else "File has improper values" is thrown
+ */
+class BedReader implements TrackReader {
+	/** Returned by parseInt when the field is not an integer */
+	private static final long NO_INT = Long.MIN_VALUE;
+	/** Largest integer held exactly by a double */
+	private static final long MAX_EXACT = 1L << 53;
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	/** True if the fourth field is a decimal value rather than a read count */
+	private boolean valueField;
+
+	private ByteSource source;
+	/** End of the byte range to read */
+	private long rangeEnd;
+
+	/** Mapped part of the file */
+	private ByteBuffer buf;
+	/** File offset of the start of buf */
+	private long bufOffset;
+	/** Position of the next line in buf */
+	private int pos;
+	/** End of the last field parsed by parseInt or parseValue */
+	private int fieldEnd;
+
+	//-- Current record --
+	private long lineOffset;
+	private long nextOffset;
+	private byte[] chromBytes;
+	private int chromLength;
+	private String chrom;
+	private boolean chromChanged;
+	private int start;
+	private int end;
+	private int count;
+	private double value;
+
+	/** Constructor for reading a whole file
+	 * @param f - coverage .bed file
+	 */
+	public BedReader(File f) throws IOException {
+		this(f, 0, Long.MAX_VALUE);
+	}
+
+	/** Constructor for reading the lines in a byte range of a file
+	 * @param f - coverage .bed file
+	 * @param from - offset of the first line to read
+	 * @param to - offset after the last line to read (lines are not read past it)
+	 */
+	public BedReader(File f, long from, long to) throws IOException {
+		this(f, from, to, false);
+	}
+
+	/** Constructor for reading the lines in a byte range of a file
+	 * @param f - coverage .bed file, or bedGraph file if v is true (uncompressed or BGZF)
+	 * @param from - offset of the first line to read
+	 * @param to - offset after the last line to read (lines are not read past it)
+	 * @param v - true if the fourth field is a decimal value (see getValue) rather than a read count
+	 */
+	public BedReader(File f, long from, long to, boolean v) throws IOException {
+		this(MappedSource.open(f), from, to, v);
+	}
+
+	/** Constructor for reading all the lines of a source, such as a stream (see StreamSource)
+	 * @param s - coverage .bed lines (the source is closed on close)
+	 */
+	public BedReader(ByteSource s) throws IOException {
+		this(s, 0, Long.MAX_VALUE, false);
+	}
+
+	private BedReader(ByteSource s, long from, long to, boolean v) throws IOException {
+		valueField = v;
+		source = s;
+		rangeEnd = Math.min(to, source.size());
+		chromBytes = new byte[32];
+		chromLength = 0;
+		map(Math.min(from, rangeEnd));
+	}
+
+	//-- Get current record --
+	@Override
+	public String getChrom() {
+		return chrom;
+	}
+
+	/** True if the current record's chromosome differs from the previous record's */
+	public boolean chromChanged() {
+		return chromChanged;
+	}
+
+	@Override
+	public int getStart() {
+		return start;
+	}
+
+	@Override
+	public int getEnd() {
+		return end;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/** Value of the fourth field, if reading decimal values */
+	@Override
+	public double getValue() {
+		return value;
+	}
+
+	/** File offset of the current record's line */
+	public long getLineOffset() {
+		return lineOffset;
+	}
+
+	/** File offset after the current record's line */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	/** End of the byte range being read */
+	public long getRangeEnd() {
+		return rangeEnd;
+	}
+
+	/**
+	 * Advance to the next data line
+	 * @return false if there are no more data lines in the range
+	 */
+	@Override
+	public boolean next() throws IOException {
+		while (true) {
+			if (pos >= buf.limit()) {
+				if (bufOffset + pos >= rangeEnd) {
+					return false;
+				}
+				map(bufOffset + pos);
+			}
+
+			int lineEnd = pos;
+			int limit = buf.limit();
+			while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if (lineEnd == limit && bufOffset + limit < rangeEnd) { // line continues past the mapped part
+				if (pos == 0) {
+					throw new IOException("Line too long at offset " + bufOffset);
+				}
+				map(bufOffset + pos);
+				continue;
+			}
+
+			lineOffset = bufOffset + pos;
+			nextOffset = bufOffset + Math.min(lineEnd + 1, limit);
+			boolean parsed = parseLine(pos, lineEnd);
+			pos = lineEnd + 1;
+			if (parsed) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Copy the current record's line as it is in the file, with its newline if it has one
+	 * @param b - array to copy into, at least getNextOffset() - getLineOffset() long
+	 * @return number of bytes copied
+	 */
+	public int copyLine(byte[] b) {
+		int n = (int) (nextOffset - lineOffset);
+		int from = (int) (lineOffset - bufOffset);
+		for (int i = 0; i < n; i++) {
+			b[i] = buf.get(from + i);
+		}
+		return n;
+	}
+
+	/**
+	 * Move to the line at the given offset, keeping the mapped part if it holds the offset
+	 * (so lines looked up in order, see TrackQuery, are mostly read from the same mapped or decompressed part)
+	 * @param offset - offset of a line start, within the range being read
+	 */
+	public void seek(long offset) throws IOException {
+		offset = Math.min(offset, rangeEnd);
+		if (offset >= bufOffset && offset < bufOffset + buf.limit()) {
+			pos = (int) (offset - bufOffset);
+		}
+		else {
+			map(offset);
+		}
+	}
+
+	/** Map the file from the given offset up to the source's map size or the range end */
+	private void map(long offset) throws IOException {
+		bufOffset = offset;
+		int length = (int) Math.min(source.getMapSize(), rangeEnd - offset);
+		buf = source.map(offset, length);
+		if (buf.limit() < length) { // source ended early (a stream)
+			rangeEnd = offset + buf.limit();
+		}
+		pos = 0;
+	}
+
+	/**
+	 * Parse the line in buf[from, to) into the current record
+	 * @return false if the line is not a data line, leaving the current record unchanged
+	 * @throws IOException - if the line has a chromosome and start, but its end or fourth field is missing or improper
+	 */
+	private boolean parseLine(int from, int to) throws IOException {
+		int cs = skipSpace(from, to);
+		int ce = cs;
+		while (ce < to && !isSpace(buf.get(ce))) {
+			ce++;
+		}
+		if (ce == cs) {
+			return false;
+		}
+
+		long s = parseInt(skipSpace(ce, to), to);
+		if (s == NO_INT) {
+			return false;
+		}
+		long e = parseInt(skipSpace(fieldEnd, to), to);
+		if (e == NO_INT) {
+			throw improper(from, to);
+		}
+		if (valueField) {
+			if (!parseValue(skipSpace(fieldEnd, to), to)) {
+				throw improper(from, to);
+			}
+		}
+		else {
+			long rc = parseInt(skipSpace(fieldEnd, to), to);
+			if (rc == NO_INT) {
+				throw improper(from, to);
+			}
+			count = (int) rc;
+		}
+
+		start = (int) s;
+		end = (int) e;
+		setChrom(cs, ce);
+		return true;
+	}
+
+	/** Error for the data line in buf[from, to) with improper values */
+	private IOException improper(int from, int to) {
+		byte[] line = new byte[to - from];
+		for (int i = 0; i < line.length; i++) {
+			line[i] = buf.get(from + i);
+		}
+		return new IOException("File has improper values: " + new String(line, StandardCharsets.ISO_8859_1).trim());
+	}
+
+	/** Set the current chromosome, only making a new String when it changes */
+	private void setChrom(int cs, int ce) {
+		int len = ce - cs;
+		boolean same = chrom != null && len == chromLength;
+		for (int i = 0; same && i < len; i++) {
+			same = chromBytes[i] == buf.get(cs + i);
+		}
+		chromChanged = !same;
+		if (same) {
+			return;
+		}
+
+		if (len > chromBytes.length) {
+			chromBytes = new byte[len];
+		}
+		for (int i = 0; i < len; i++) {
+			chromBytes[i] = buf.get(cs + i);
+		}
+		chromLength = len;
+		chrom = new String(chromBytes, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Parse an integer field starting at i, setting fieldEnd to the end of the field
+	 * @return the value, or NO_INT if the field is missing, not an integer or out of int range
+	 */
+	private long parseInt(int i, int to) {
+		boolean neg = false;
+		if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			neg = buf.get(i) == '-';
+			i++;
+		}
+		int digitsStart = i;
+		long val = 0;
+		while (i < to) {
+			byte b = buf.get(i);
+			if (b < '0' || b > '9') {
+				break;
+			}
+			val = val * 10 + (b - '0');
+			if (val > (long) Integer.MAX_VALUE + 1) {
+				return NO_INT;
+			}
+			i++;
+		}
+		if (i == digitsStart || (i < to && !isSpace(buf.get(i)))) {
+			return NO_INT;
+		}
+		if (neg) {
+			val = -val;
+		}
+		if (val > Integer.MAX_VALUE) {
+			return NO_INT;
+		}
+		fieldEnd = i;
+		return val;
+	}
+
+	/**
+	 * Parse a decimal field starting at i into value, setting fieldEnd to the end of the field
+	 * Plain decimals are worked out as digits / 10^places, which rounds the same as Double.parseDouble,
+	 * anything else (exponents, many digits, etc) is given to Double.parseDouble
+	 * @return false if the field is missing or not a number
+	 */
+	private boolean parseValue(int i, int to) {
+		int fieldStart = i;
+		boolean neg = false;
+		if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			neg = buf.get(i) == '-';
+			i++;
+		}
+		long digits = 0;
+		int nDigits = 0;
+		int places = -1;
+		while (i < to) {
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9') {
+				if (nDigits < 18) {
+					digits = digits * 10 + (b - '0');
+				}
+				nDigits++;
+				if (places >= 0) {
+					places++;
+				}
+			}
+			else if (b == '.' && places < 0) {
+				places = 0;
+			}
+			else {
+				break;
+			}
+			i++;
+		}
+
+		if (nDigits > 0 && nDigits <= 18 && digits <= MAX_EXACT && places < POW10.length
+				&& (i == to || isSpace(buf.get(i)))) {
+			value = places > 0 ? digits / POW10[places] : digits;
+			if (neg) {
+				value = -value;
+			}
+			fieldEnd = i;
+			return true;
+		}
+
+		//-- Other forms --
+		i = fieldStart;
+		while (i < to && !isSpace(buf.get(i))) {
+			i++;
+		}
+		if (i == fieldStart) {
+			return false;
+		}
+		byte[] field = new byte[i - fieldStart];
+		for (int j = 0; j < field.length; j++) {
+			field[j] = buf.get(fieldStart + j);
+		}
+		try {
+			value = Double.parseDouble(new String(field, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		fieldEnd = i;
+		return true;
+	}
+
+	private int skipSpace(int i, int to) {
+		while (i < to && isSpace(buf.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/** Whitespace as matched by \s */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buf = null;
+		source.close();
+	}
+
+}
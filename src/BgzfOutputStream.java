@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF file (blocked gzip, readable by gzip, bgzip, tabix and BgzfSource)
+ * The data is cut in blocks of up to 0xff00 bytes, compressed on a shared pool of threads
+ * and written in order, up to MAX_PENDING blocks behind
+ * BGZF files can be concatenated (without their empty end block, see close)
+ */
+class BgzfOutputStream extends OutputStream {
+	/** Uncompressed bytes per block */
+	static final int BLOCK_DATA = 0xFF00;
+	/** Largest block */
+	private static final int MAX_BLOCK = 1 << 16;
+	/** Blocks compressing at a time, per stream */
+	private static final int MAX_PENDING = 8;
+	/** Empty block ending a BGZF file */
+	static final byte[] EOF_BLOCK = {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF, 6, 0, 'B', 'C', 2, 0,
+			0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private static ExecutorService pool;
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private OutputStream out;
+	private boolean endBlock;
+	private byte[] block;
+	private int len;
+	private ArrayDeque<Future<byte[]>> pending;
+
+	/** Constructor for a complete BGZF file
+	 * @param o - stream written to (closed on close)
+	 */
+	public BgzfOutputStream(OutputStream o) {
+		this(o, true);
+	}
+
+	/** Constructor
+	 * @param o - stream written to (closed on close)
+	 * @param eB - false to leave out the end block, for a part of a file
+	 */
+	public BgzfOutputStream(OutputStream o, boolean eB) {
+		out = o;
+		endBlock = eB;
+		block = new byte[BLOCK_DATA];
+		len = 0;
+		pending = new ArrayDeque<Future<byte[]>>();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[len++] = (byte) b;
+		if (len == BLOCK_DATA) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException {
+		while (n > 0) {
+			int k = Math.min(n, BLOCK_DATA - len);
+			System.arraycopy(b, off, block, len, k);
+			len += k;
+			off += k;
+			n -= k;
+			if (len == BLOCK_DATA) {
+				submitBlock();
+			}
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int n = len;
+		pending.add(getPool().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(data, n);
+			}
+		}));
+		block = new byte[BLOCK_DATA];
+		len = 0;
+		while (pending.size() > MAX_PENDING) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.poll().get());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** Write the blocks compressed so far (a block is only complete when full or on close) */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty()) {
+			writeNext();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (len > 0) {
+			submitBlock();
+		}
+		flush();
+		if (endBlock) {
+			out.write(EOF_BLOCK);
+		}
+		out.close();
+	}
+
+	/**
+	 * Compress a block, stored as is if it does not compress to fit in a block
+	 * @param data - uncompressed bytes
+	 * @param n - number of bytes (at most BLOCK_DATA)
+	 * @return BGZF block
+	 */
+	static byte[] compress(byte[] data, int n) {
+		byte[] b = new byte[MAX_BLOCK];
+		int size = deflate(DEFLATERS.get(), data, n, b);
+		if (size < 0) {
+			Deflater stored = new Deflater(Deflater.NO_COMPRESSION, true);
+			size = deflate(stored, data, n, b);
+			stored.end();
+		}
+
+		b[0] = 0x1F;
+		b[1] = (byte) 0x8B;
+		b[2] = 8;
+		b[3] = 4;
+		b[9] = (byte) 0xFF;
+		b[10] = 6;
+		b[12] = 'B';
+		b[13] = 'C';
+		b[14] = 2;
+		putShort(b, 16, size - 1);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, n);
+		putInt(b, size - 8, (int) crc.getValue());
+		putInt(b, size - 4, n);
+		return Arrays.copyOf(b, size);
+	}
+
+	/** Deflate data after the header of b, returning the block size, or -1 if it does not fit */
+	private static int deflate(Deflater d, byte[] data, int n, byte[] b) {
+		d.reset();
+		d.setInput(data, 0, n);
+		d.finish();
+		int p = 18;
+		while (!d.finished() && p < b.length - 8) {
+			p += d.deflate(b, p, b.length - 8 - p);
+		}
+		return d.finished() ? p + 8 : -1;
+	}
+
+	private static void putShort(byte[] b, int i, int v) {
+		b[i] = (byte) v;
+		b[i + 1] = (byte) (v >>> 8);
+	}
+
+	private static void putInt(byte[] b, int i, int v) {
+		putShort(b, i, v);
+		putShort(b, i + 2, v >>> 16);
+	}
+
+}
@@ -0,0 +1,264 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the uncompressed bytes of a BGZF file (blocked gzip, as made by bgzip or BgzfOutputStream) from any offset
+ * The blocks are found from their headers alone, then only the blocks holding a part are decompressed,
+ * so readers of different parts of the file (chunks, chromosomes, tiles) decompress it in parallel
+ */
+class BgzfSource implements ByteSource {
+	/** Uncompressed bytes decompressed at a time */
+	private static final int MAP_SIZE = 1 << 22;
+	/** Fixed part of a block header, before the extra subfields */
+	private static final int HEADER_BYTES = 12;
+
+	/** Block tables of the files read, by path, size and time modified */
+	private static final HashMap<String, long[][]> TABLES = new HashMap<String, long[][]>();
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/** File offset of each block with data, then the file size */
+	private long[] blockOffsets;
+	/** Uncompressed offset of each block with data, then the uncompressed size */
+	private long[] dataOffsets;
+	private Inflater inflater;
+	private byte[] compressed;
+
+	/** Constructor
+	 * @param f - BGZF file
+	 * @throws IOException - if the file cannot be read or is not BGZF
+	 */
+	public BgzfSource(File f) throws IOException {
+		try {
+			raf = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		channel = raf.getChannel();
+		long[][] table = blocks(f, channel);
+		blockOffsets = table[0];
+		dataOffsets = table[1];
+		inflater = new Inflater(true);
+		compressed = new byte[1 << 16];
+	}
+
+	/** True if the file starts with the gzip magic number */
+	public static boolean isGzip(File f) throws IOException {
+		byte[] h = readHeader(f);
+		return h.length >= 2 && (h[0] & 0xFF) == 0x1F && (h[1] & 0xFF) == 0x8B;
+	}
+
+	/** True if the file starts with a BGZF block (a gzip member with a BC extra subfield) */
+	public static boolean isBgzf(File f) throws IOException {
+		byte[] h = readHeader(f);
+		return h.length == 18 && (h[0] & 0xFF) == 0x1F && (h[1] & 0xFF) == 0x8B && (h[3] & 4) != 0
+				&& h[12] == 'B' && h[13] == 'C';
+	}
+
+	private static byte[] readHeader(File f) throws IOException {
+		RandomAccessFile r;
+		try {
+			r = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		byte[] h = new byte[(int) Math.min(18, r.length())];
+		r.readFully(h);
+		r.close();
+		return h;
+	}
+
+	/**
+	 * A file that can be read from any offset: the file itself if uncompressed or BGZF,
+	 * or a BGZF copy of a plain gzip file (deleted on exit)
+	 * @param f - input file
+	 * @param dir - directory for the copy
+	 * @return file to read
+	 * @throws IOException - if the file cannot be read, or the copy cannot be written
+	 */
+	public static File readable(File f, File dir) throws IOException {
+		if (!isGzip(f) || isBgzf(f)) {
+			return f;
+		}
+		System.out.println("Recompressing " + f.getPath() + " as BGZF, for reading in parallel.");
+		File copy = File.createTempFile(f.getName() + ".", ".bgz", dir);
+		copy.deleteOnExit();
+		InputStream in = new GZIPInputStream(new FileInputStream(f), 1 << 16);
+		OutputStream out = new BgzfOutputStream(new FileOutputStream(copy));
+		byte[] b = new byte[1 << 20];
+		for (int n = in.read(b); n >= 0; n = in.read(b)) {
+			out.write(b, 0, n);
+		}
+		in.close();
+		out.close();
+		return copy;
+	}
+
+	/**
+	 * Find the blocks of a file from their headers and sizes (each block's last 4 bytes), without decompressing them
+	 * @return file offsets of the blocks with data, then their uncompressed offsets (and the uncompressed size)
+	 */
+	private static long[][] blocks(File f, FileChannel ch) throws IOException {
+		long size = ch.size();
+		String key = f.getAbsolutePath() + ":" + size + ":" + f.lastModified();
+		synchronized (TABLES) {
+			long[][] table = TABLES.get(key);
+			if (table != null) {
+				return table;
+			}
+		}
+
+		long[] offsets = new long[1024];
+		long[] data = new long[1025];
+		int n = 0;
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + 0xFFFF).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = 0;
+		long dataOffset = 0;
+		while (offset < size) {
+			readFully(ch, bb, offset, HEADER_BYTES);
+			if ((bb.get(0) & 0xFF) != 0x1F || (bb.get(1) & 0xFF) != 0x8B || bb.get(2) != 8 || (bb.get(3) & 4) == 0) {
+				throw new IOException("Not a BGZF block at offset " + offset + ": " + f.getPath());
+			}
+			int xlen = bb.getShort(10) & 0xFFFF;
+			readFully(ch, bb, offset + HEADER_BYTES, xlen);
+			int blockSize = -1;
+			for (int i = 0; i + 4 <= xlen; i += 4 + (bb.getShort(i + 2) & 0xFFFF)) {
+				if (bb.get(i) == 'B' && bb.get(i + 1) == 'C' && (bb.getShort(i + 2) & 0xFFFF) == 2) {
+					blockSize = (bb.getShort(i + 4) & 0xFFFF) + 1;
+				}
+			}
+			if (blockSize < HEADER_BYTES + xlen + 8 || offset + blockSize > size) {
+				throw new IOException("Bad BGZF block at offset " + offset + ": " + f.getPath());
+			}
+			readFully(ch, bb, offset + blockSize - 4, 4);
+			long dataSize = bb.getInt(0) & 0xFFFFFFFFL;
+			if (dataSize > 0) {
+				if (n == offsets.length) {
+					offsets = Arrays.copyOf(offsets, 2 * n);
+					data = Arrays.copyOf(data, 2 * n + 1);
+				}
+				offsets[n] = offset;
+				data[n] = dataOffset;
+				n++;
+			}
+			dataOffset += dataSize;
+			offset += blockSize;
+		}
+		data[n] = dataOffset;
+
+		long[][] table = {Arrays.copyOf(offsets, n + 1), Arrays.copyOf(data, n + 1)};
+		table[0][n] = size;
+		synchronized (TABLES) {
+			TABLES.put(key, table);
+		}
+		return table;
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer bb, long offset, int n) throws IOException {
+		bb.clear();
+		bb.limit(n);
+		while (bb.hasRemaining()) {
+			if (ch.read(bb, offset + bb.position()) < 0) {
+				throw new EOFException("Truncated BGZF file");
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return dataOffsets[dataOffsets.length - 1];
+	}
+
+	@Override
+	public ByteBuffer map(long offset, int length) throws IOException {
+		int n = blockOffsets.length - 1;
+		int first = Arrays.binarySearch(dataOffsets, 0, n, offset);
+		if (first < 0) {
+			first = -first - 2; // block starting before offset
+		}
+		int last = first;
+		while (last < n && dataOffsets[last] < offset + length) {
+			last++;
+		}
+		if (first < 0 || first >= last) {
+			return ByteBuffer.allocate(0);
+		}
+
+		//-- Read the blocks' compressed bytes, then inflate each --
+		long from = blockOffsets[first];
+		int compressedSize = (int) (blockOffsets[last] - from);
+		if (compressed.length < compressedSize) {
+			compressed = new byte[compressedSize];
+		}
+		ByteBuffer cb = ByteBuffer.wrap(compressed, 0, compressedSize);
+		while (cb.hasRemaining()) {
+			if (channel.read(cb, from + cb.position()) < 0) {
+				throw new EOFException("Truncated BGZF file");
+			}
+		}
+		byte[] out = new byte[(int) (dataOffsets[last] - dataOffsets[first])];
+		for (int i = first; i < last; i++) {
+			int p = (int) (blockOffsets[i] - from);
+			int dataStart = p + HEADER_BYTES + (compressed[p + 10] & 0xFF | (compressed[p + 11] & 0xFF) << 8);
+			int dataEnd = p + blockSize(p, dataStart, i) - 8;
+			int outStart = (int) (dataOffsets[i] - dataOffsets[first]);
+			int outSize = (int) (dataOffsets[i + 1] - dataOffsets[i]);
+			inflater.reset();
+			inflater.setInput(compressed, dataStart, dataEnd - dataStart);
+			try {
+				int got = 0;
+				while (got < outSize && !inflater.finished()) {
+					int k = inflater.inflate(out, outStart + got, outSize - got);
+					if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					got += k;
+				}
+				if (got != outSize) {
+					throw new IOException("Bad BGZF block at offset " + blockOffsets[i]);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Bad BGZF block at offset " + blockOffsets[i] + ": " + e.getMessage());
+			}
+		}
+		return ByteBuffer.wrap(out, (int) (offset - dataOffsets[first]), length).slice();
+	}
+
+	/** Compressed size of the block read at p, from the BC subfield of its header (ending at dataStart) */
+	private int blockSize(int p, int dataStart, int i) throws IOException {
+		for (int j = p + HEADER_BYTES; j + 6 <= dataStart; j += 4 + (compressed[j + 2] & 0xFF | (compressed[j + 3] & 0xFF) << 8)) {
+			if (compressed[j] == 'B' && compressed[j + 1] == 'C') {
+				return (compressed[j + 4] & 0xFF | (compressed[j + 5] & 0xFF) << 8) + 1;
+			}
+		}
+		throw new IOException("Bad BGZF block at offset " + blockOffsets[i]);
+	}
+
+	@Override
+	public int getMapSize() {
+		return MAP_SIZE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+		raf.close();
+	}
+
+}
@@ -0,0 +1,660 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a bigWig file (see the UCSC bigWig format), with zoom levels, from chromosomes written in parallel
+ * Each chromosome's compressed data blocks and zoom summaries are written to temporary part files as its lines are given (see Chrom),
+ * then the header, chromosome B+ tree, data, R-tree indexes and zoom levels are put together by write
+ */
+class BigWigWriter {
+	private static final int MAGIC = 0x888FFC26;
+	private static final int VERSION = 4;
+	private static final int BPT_MAGIC = 0x78CA8C91;
+	private static final int CIR_MAGIC = 0x2468ACE0;
+	private static final int HEADER_BYTES = 64;
+	private static final int ZOOM_HEADER_BYTES = 24;
+	private static final int SUMMARY_BYTES = 40;
+	/** Items per data block and zoom records per zoom block */
+	private static final int ITEMS_PER_SLOT = 1024;
+	/** Children per index node */
+	private static final int BLOCK_SIZE = 256;
+	private static final int MAX_ZOOM_LEVELS = 10;
+	/** Section types of data blocks */
+	private static final byte BEDGRAPH = 1;
+	private static final byte FIXED_STEP = 3;
+
+	private File outFile;
+	/** Bases summarized by each zoom record, for each zoom level */
+	private int[] reductions;
+	/** True if values are rounded to 5 decimal places (as printed in bedGraph) */
+	private boolean rounded;
+	private ArrayList<Chrom> chroms;
+
+	/** Constructor
+	 * @param f - output bigWig file
+	 * @param r - bases per zoom record of each zoom level (see zoomReductions)
+	 * @param rd - true to round values to 5 decimal places
+	 */
+	public BigWigWriter(File f, int[] r, boolean rd) {
+		outFile = f;
+		reductions = r;
+		rounded = rd;
+		chroms = new ArrayList<Chrom>();
+	}
+
+	/**
+	 * Zoom levels for intervals of a size, each summarizing 4 times the bases of the last
+	 * @param intervalSize - smallest interval size
+	 * @param maxSpan - bases spanned by the largest chromosome
+	 * @return bases per zoom record of each level, starting at 10 intervals, up to the largest chromosome
+	 */
+	public static int[] zoomReductions(int intervalSize, long maxSpan) {
+		ArrayList<Integer> r = new ArrayList<Integer>();
+		for (long red = 10L * Math.max(intervalSize, 1); red < maxSpan && red <= Integer.MAX_VALUE && r.size() < MAX_ZOOM_LEVELS; red *= 4) {
+			r.add((int) red);
+		}
+		int[] reductions = new int[r.size()];
+		for (int i = 0; i < reductions.length; i++) {
+			reductions[i] = r.get(i);
+		}
+		return reductions;
+	}
+
+	/**
+	 * Add the next chromosome, in the order of the output
+	 * @param name - chromosome
+	 * @return writer for the chromosome's lines, which may be written in parallel with other chromosomes
+	 */
+	public Chrom addChrom(String name) {
+		Chrom c = new Chrom(chroms.size(), name, outFile.getPath() + "." + chroms.size());
+		chroms.add(c);
+		return c;
+	}
+
+	/**
+	 * Put the bigWig file together from the chromosomes' parts (once all are closed), and delete the parts
+	 * @throws IOException - if a part cannot be read, or the file cannot be written
+	 */
+	public void write() throws IOException {
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(outFile, "rw");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("Unable to write to file: " + outFile.getPath());
+		}
+		raf.setLength(0);
+		FileChannel out = raf.getChannel();
+		int levels = reductions.length;
+
+		//-- Header, zoom headers and summary, filled in at the end --
+		long pos = HEADER_BYTES + (long) ZOOM_HEADER_BYTES * levels + SUMMARY_BYTES;
+		out.position(pos);
+
+		//-- Chromosome B+ tree --
+		long chromTreeOffset = pos;
+		pos += writeChromTree(out);
+
+		//-- Data, then its index --
+		long dataOffset = pos;
+		long blocks = 0;
+		for (Chrom c : chroms) {
+			blocks += c.dataIndex.size();
+		}
+		pos += writeFully(out, littleEndian(8).putLong(0, blocks));
+		ArrayList<long[]> index = new ArrayList<long[]>();
+		for (Chrom c : chroms) {
+			pos = appendPart(out, c.dataPart, c.dataIndex, pos, index);
+		}
+		long indexOffset = pos;
+		pos += writeIndex(out, index, indexOffset, ITEMS_PER_SLOT);
+
+		//-- Zoom levels, each data then index --
+		long[] zoomDataOffsets = new long[levels];
+		long[] zoomIndexOffsets = new long[levels];
+		for (int k = 0; k < levels; k++) {
+			zoomDataOffsets[k] = pos;
+			long records = 0;
+			for (Chrom c : chroms) {
+				records += c.zoomRecords[k];
+			}
+			pos += writeFully(out, littleEndian(4).putInt(0, (int) records));
+			index.clear();
+			for (Chrom c : chroms) {
+				pos = appendPart(out, c.zoomParts[k], c.zoomIndexes.get(k), pos, index);
+			}
+			zoomIndexOffsets[k] = pos;
+			pos += writeIndex(out, index, zoomIndexOffsets[k], ITEMS_PER_SLOT);
+		}
+
+		//-- Fill in header, zoom headers and summary --
+		int maxBlock = 0;
+		long bases = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		double sumSquares = 0;
+		for (Chrom c : chroms) {
+			maxBlock = Math.max(maxBlock, c.maxBlock);
+			if (c.bases > 0) {
+				bases += c.bases;
+				min = Math.min(min, c.min);
+				max = Math.max(max, c.max);
+				sum += c.sum;
+				sumSquares += c.sumSquares;
+			}
+		}
+		ByteBuffer h = littleEndian(HEADER_BYTES + ZOOM_HEADER_BYTES * levels + SUMMARY_BYTES);
+		h.putInt(MAGIC).putShort((short) VERSION).putShort((short) levels);
+		h.putLong(chromTreeOffset).putLong(dataOffset).putLong(indexOffset);
+		h.putShort((short) 0).putShort((short) 0); // field counts (bigBed only)
+		h.putLong(0); // autoSql
+		h.putLong(HEADER_BYTES + (long) ZOOM_HEADER_BYTES * levels); // total summary
+		h.putInt(maxBlock); // uncompressed buffer size
+		h.putLong(0); // extension header
+		for (int k = 0; k < levels; k++) {
+			h.putInt(reductions[k]).putInt(0).putLong(zoomDataOffsets[k]).putLong(zoomIndexOffsets[k]);
+		}
+		h.putLong(bases);
+		h.putDouble(bases > 0 ? min : 0).putDouble(bases > 0 ? max : 0).putDouble(sum).putDouble(sumSquares);
+		h.flip();
+		for (long p = 0; h.hasRemaining(); ) {
+			p += out.write(h, p);
+		}
+		raf.close();
+
+		//-- Clean up parts --
+		boolean clean = true;
+		for (Chrom c : chroms) {
+			clean = c.dataPart.delete() && clean;
+			for (File z : c.zoomParts) {
+				clean = z.delete() && clean;
+			}
+		}
+		if (!clean) {
+			System.out.println("Unable to delete bigWig part files.");
+		}
+	}
+
+	/**
+	 * Copy a part file to the end of the output, adding its blocks to the index at their file offsets
+	 * @return position after the part
+	 */
+	private static long appendPart(FileChannel out, File part, ArrayList<long[]> blocks, long pos, ArrayList<long[]> index) throws IOException {
+		FileInputStream in = new FileInputStream(part);
+		FileChannel pc = in.getChannel();
+		long size = pc.size();
+		for (long p = 0; p < size; ) {
+			p += pc.transferTo(p, size - p, out);
+		}
+		in.close();
+		for (long[] b : blocks) {
+			long[] item = b.clone();
+			item[4] += pos;
+			index.add(item);
+		}
+		return pos + size;
+	}
+
+	/** Write the B+ tree of chromosome names (sorted), giving each chromosome's id and size */
+	private long writeChromTree(FileChannel out) throws IOException {
+		Chrom[] sorted = chroms.toArray(new Chrom[chroms.size()]);
+		Arrays.sort(sorted, new Comparator<Chrom>() {
+			@Override
+			public int compare(Chrom a, Chrom b) {
+				return compareBytes(a.nameBytes, b.nameBytes);
+			}
+		});
+		int keySize = 1;
+		for (Chrom c : sorted) {
+			keySize = Math.max(keySize, c.nameBytes.length);
+		}
+		int n = sorted.length;
+		int blockSize = Math.max(1, Math.min(BLOCK_SIZE, n));
+		int nodeBytes = 4 + blockSize * (keySize + 8);
+
+		//-- Levels, leaves first: nodes in each level --
+		ArrayList<Integer> levelNodes = new ArrayList<Integer>();
+		int count = n;
+		do {
+			count = Math.max(1, (count + blockSize - 1) / blockSize);
+			levelNodes.add(count);
+		} while (count > 1);
+		int levels = levelNodes.size();
+
+		ByteBuffer bb = littleEndian(32);
+		bb.putInt(BPT_MAGIC).putInt(blockSize).putInt(keySize).putInt(8).putLong(n).putLong(0);
+		long size = writeFully(out, bb);
+		long levelOffset = out.position();
+
+		//-- Root first down to the leaves, each node padded to blockSize items --
+		for (int l = levels - 1; l >= 0; l--) {
+			int nodes = levelNodes.get(l);
+			long childLevelOffset = levelOffset + (long) nodes * nodeBytes;
+			long itemsPerNode = 1;
+			for (int i = 0; i < l; i++) {
+				itemsPerNode *= blockSize; // leaf items under a node of this level
+			}
+			itemsPerNode *= blockSize;
+			for (int node = 0; node < nodes; node++) {
+				ByteBuffer nb = littleEndian(nodeBytes);
+				long first = node * itemsPerNode;
+				long step = itemsPerNode / blockSize;
+				int items = (int) Math.min(blockSize, (n - first + step - 1) / step);
+				nb.put((byte) (l == 0 ? 1 : 0)).put((byte) 0).putShort((short) items);
+				for (int i = 0; i < items; i++) {
+					Chrom c = sorted[(int) (first + i * step)];
+					nb.put(c.nameBytes);
+					nb.position(nb.position() + keySize - c.nameBytes.length);
+					if (l == 0) {
+						nb.putInt(c.id).putInt(c.size);
+					}
+					else {
+						nb.putLong(childLevelOffset + ((long) node * blockSize + i) * nodeBytes);
+					}
+				}
+				nb.position(nodeBytes);
+				size += writeFully(out, nb);
+			}
+			levelOffset = childLevelOffset;
+		}
+		return size;
+	}
+
+	/**
+	 * Write an R-tree index (UCSC cirTree) of blocks sorted by position
+	 * @param blocks - {startChrom, startBase, endChrom, endBase, offset, size} of each block
+	 * @param offset - file offset of the index
+	 * @param itemsPerSlot - items per block
+	 * @return bytes written
+	 */
+	private static long writeIndex(FileChannel out, ArrayList<long[]> blocks, long offset, int itemsPerSlot) throws IOException {
+		int n = blocks.size();
+		int blockSize = Math.max(1, Math.min(BLOCK_SIZE, n));
+
+		//-- Bounds of the nodes at each level, leaves first --
+		ArrayList<long[][]> levels = new ArrayList<long[][]>();
+		long[][] below = blocks.toArray(new long[n][]);
+		do {
+			long[][] nodes = new long[Math.max(1, (below.length + blockSize - 1) / blockSize)][];
+			for (int i = 0; i < nodes.length; i++) {
+				int from = i * blockSize;
+				int to = Math.min(below.length, from + blockSize);
+				nodes[i] = from < to ? new long[] {below[from][0], below[from][1], below[to - 1][2], below[to - 1][3]} : new long[4];
+			}
+			levels.add(nodes);
+			below = nodes;
+		} while (below.length > 1);
+
+		long[] root = levels.get(levels.size() - 1)[0];
+		ByteBuffer bb = littleEndian(48);
+		bb.putInt(CIR_MAGIC).putInt(blockSize).putLong(n);
+		bb.putInt((int) root[0]).putInt((int) root[1]).putInt((int) root[2]).putInt((int) root[3]);
+		bb.putLong(offset).putInt(itemsPerSlot).putInt(0);
+		long size = writeFully(out, bb);
+
+		//-- Root first down to the leaves, each node padded to blockSize items --
+		long levelOffset = offset + size;
+		for (int l = levels.size() - 1; l >= 0; l--) {
+			long[][] nodes = levels.get(l);
+			long[][] children = l == 0 ? blocks.toArray(new long[n][]) : levels.get(l - 1);
+			int nodeBytes = 4 + blockSize * (l == 0 ? 32 : 24);
+			int childBytes = l == 1 ? 4 + blockSize * 32 : 4 + blockSize * 24;
+			long childLevelOffset = levelOffset + (long) nodes.length * nodeBytes;
+			for (int node = 0; node < nodes.length; node++) {
+				ByteBuffer nb = littleEndian(nodeBytes);
+				int from = node * blockSize;
+				int items = Math.max(0, Math.min(blockSize, children.length - from));
+				nb.put((byte) (l == 0 ? 1 : 0)).put((byte) 0).putShort((short) items);
+				for (int i = from; i < from + items; i++) {
+					long[] c = children[i];
+					nb.putInt((int) c[0]).putInt((int) c[1]).putInt((int) c[2]).putInt((int) c[3]);
+					if (l == 0) {
+						nb.putLong(c[4]).putLong(c[5]);
+					}
+					else {
+						nb.putLong(childLevelOffset + (long) i * childBytes);
+					}
+				}
+				nb.position(nodeBytes);
+				size += writeFully(out, nb);
+			}
+			levelOffset = childLevelOffset;
+		}
+		return size;
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		for (int i = 0; i < Math.min(a.length, b.length); i++) {
+			if (a[i] != b[i]) {
+				return (a[i] & 0xFF) - (b[i] & 0xFF);
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static ByteBuffer littleEndian(int n) {
+		return ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Write the whole buffer (from 0 to its position, or its limit if nothing put) at the channel's position */
+	private static long writeFully(FileChannel out, ByteBuffer bb) throws IOException {
+		if (bb.position() > 0) {
+			bb.flip();
+		}
+		long n = bb.remaining();
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+		return n;
+	}
+
+	/**
+	 * Writes one chromosome's lines: data blocks (fixedStep where the intervals are adjacent and of one width, bedGraph otherwise)
+	 * and zoom records (summaries of each bin of reduction bases, each level built from the one below), compressed to part files
+	 */
+	class Chrom implements TrackWriter {
+		private int id;
+		private String name;
+		private byte[] nameBytes;
+		private String partPrefix;
+		/** Largest end written */
+		private int size;
+		/** Start of the last line written */
+		private int lastStart;
+
+		private File dataPart;
+		private FileOutputStream dataOut;
+		private long dataBytes;
+		/** {chrom, start, chrom, end, offset in part, size} of each data block */
+		private ArrayList<long[]> dataIndex;
+		private File[] zoomParts;
+		private FileOutputStream[] zoomOuts;
+		private ArrayList<ArrayList<long[]>> zoomIndexes;
+		private long[] zoomBytes;
+		private long[] zoomRecords;
+
+		private Deflater deflater;
+		private byte[] zbuf;
+		/** Largest block before compression */
+		private int maxBlock;
+
+		//-- Lines of the current data block --
+		private int[] starts;
+		private int[] ends;
+		private float[] values;
+		private int items;
+
+		//-- Summary of the chromosome --
+		private long bases;
+		private double min;
+		private double max;
+		private double sum;
+		private double sumSquares;
+
+		//-- Current zoom record and block of each level --
+		private long[] zBin;
+		private int[] zStart;
+		private int[] zEnd;
+		private long[] zValid;
+		private double[] zMin;
+		private double[] zMax;
+		private double[] zSum;
+		private double[] zSumSquares;
+		private ByteBuffer[] zBlock;
+		private int[] zBlockStart;
+		private int[] zBlockEnd;
+		private int[] zItems;
+
+		/** Constructor, the part files and buffers are made when the first line is written
+		 * @param i - chromosome id (order in the file)
+		 * @param n - chromosome
+		 * @param pP - path prefix of the part files
+		 */
+		private Chrom(int i, String n, String pP) {
+			id = i;
+			name = n;
+			nameBytes = n.getBytes(StandardCharsets.ISO_8859_1);
+			partPrefix = pP;
+			size = 0;
+			dataIndex = new ArrayList<long[]>();
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+
+			int levels = reductions.length;
+			zoomParts = new File[levels];
+			zoomIndexes = new ArrayList<ArrayList<long[]>>();
+			zoomBytes = new long[levels];
+			zoomRecords = new long[levels];
+			dataPart = new File(partPrefix + ".part");
+			for (int k = 0; k < levels; k++) {
+				zoomParts[k] = new File(partPrefix + ".z" + k + ".part");
+				zoomIndexes.add(new ArrayList<long[]>());
+			}
+		}
+
+		/** Open the part files and make the buffers */
+		private void open() throws IOException {
+			dataOut = new FileOutputStream(dataPart);
+			deflater = new Deflater();
+			zbuf = new byte[1 << 16];
+			starts = new int[ITEMS_PER_SLOT];
+			ends = new int[ITEMS_PER_SLOT];
+			values = new float[ITEMS_PER_SLOT];
+			items = 0;
+
+			int levels = reductions.length;
+			zoomOuts = new FileOutputStream[levels];
+			zBin = new long[levels];
+			zStart = new int[levels];
+			zEnd = new int[levels];
+			zValid = new long[levels];
+			zMin = new double[levels];
+			zMax = new double[levels];
+			zSum = new double[levels];
+			zSumSquares = new double[levels];
+			zBlock = new ByteBuffer[levels];
+			zBlockStart = new int[levels];
+			zBlockEnd = new int[levels];
+			zItems = new int[levels];
+			for (int k = 0; k < levels; k++) {
+				zoomOuts[k] = new FileOutputStream(zoomParts[k]);
+				zBin[k] = -1;
+				zBlock[k] = ByteBuffer.allocate(ITEMS_PER_SLOT * 32).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		/** Write a line of the chromosome (lines must be sorted, the part of a line overlapping the last is left out) */
+		@Override
+		public void write(String cN, int s, int e, double v) throws IOException {
+			if (dataOut == null) {
+				open();
+			}
+			if (s < lastStart || e <= s) {
+				throw new IOException("bigWig lines must be sorted: " + name + "\t" + s + "\t" + e);
+			}
+			if (s < size) { // repeated line at a gap
+				if (e <= size) {
+					return;
+				}
+				s = size;
+			}
+			lastStart = s;
+			if (rounded) {
+				v = BedGraphWriter.rounded5(v);
+			}
+			float f = (float) v;
+			size = e;
+
+			starts[items] = s;
+			ends[items] = e;
+			values[items] = f;
+			items++;
+			if (items == ITEMS_PER_SLOT) {
+				writeDataBlock();
+			}
+
+			//-- Summaries --
+			int bp = e - s;
+			bases += bp;
+			min = Math.min(min, f);
+			max = Math.max(max, f);
+			sum += (double) f * bp;
+			sumSquares += (double) f * f * bp;
+			if (reductions.length > 0) {
+				int red = reductions[0];
+				for (int from = s; from < e; ) {
+					long bin = from / red;
+					int to = (int) Math.min(e, (bin + 1) * red);
+					int n = to - from;
+					addToZoom(0, bin, from, to, n, f, f, (double) f * n, (double) f * f * n);
+					from = to;
+				}
+			}
+		}
+
+		/** Compress and write the current data block, as fixedStep if the lines are adjacent and of one width */
+		private void writeDataBlock() throws IOException {
+			if (items == 0) {
+				return;
+			}
+			int span = ends[0] - starts[0];
+			boolean fixed = true;
+			for (int i = 1; i < items && fixed; i++) {
+				fixed = starts[i] == ends[i - 1] && ends[i] - starts[i] == span;
+			}
+			ByteBuffer bb = littleEndian(24 + items * (fixed ? 4 : 12));
+			bb.putInt(id).putInt(starts[0]).putInt(ends[items - 1]);
+			bb.putInt(fixed ? span : 0).putInt(fixed ? span : 0);
+			bb.put(fixed ? FIXED_STEP : BEDGRAPH).put((byte) 0).putShort((short) items);
+			for (int i = 0; i < items; i++) {
+				if (!fixed) {
+					bb.putInt(starts[i]).putInt(ends[i]);
+				}
+				bb.putFloat(values[i]);
+			}
+			int n = compress(bb.array(), bb.position(), dataOut);
+			dataIndex.add(new long[] {id, starts[0], id, ends[items - 1], dataBytes, n});
+			dataBytes += n;
+			items = 0;
+		}
+
+		/** Add a summary of [s, e) in the given bin to a zoom level, writing the last record of the level when the bin changes */
+		private void addToZoom(int k, long bin, int s, int e, long valid, double mn, double mx, double sm, double sq) throws IOException {
+			if (zBin[k] != bin) {
+				if (zBin[k] >= 0) {
+					endZoomRecord(k);
+				}
+				zBin[k] = bin;
+				zStart[k] = s;
+				zValid[k] = 0;
+				zMin[k] = mn;
+				zMax[k] = mx;
+				zSum[k] = 0;
+				zSumSquares[k] = 0;
+			}
+			zEnd[k] = e;
+			zValid[k] += valid;
+			zMin[k] = Math.min(zMin[k], mn);
+			zMax[k] = Math.max(zMax[k], mx);
+			zSum[k] += sm;
+			zSumSquares[k] += sq;
+		}
+
+		/** Write the current record of a zoom level, and add it to the level above */
+		private void endZoomRecord(int k) throws IOException {
+			ByteBuffer zb = zBlock[k];
+			if (zItems[k] == 0) {
+				zBlockStart[k] = zStart[k];
+			}
+			zb.putInt(id).putInt(zStart[k]).putInt(zEnd[k]).putInt((int) zValid[k]);
+			zb.putFloat((float) zMin[k]).putFloat((float) zMax[k]).putFloat((float) zSum[k]).putFloat((float) zSumSquares[k]);
+			zBlockEnd[k] = zEnd[k];
+			zItems[k]++;
+			zoomRecords[k]++;
+			if (zItems[k] == ITEMS_PER_SLOT) {
+				writeZoomBlock(k);
+			}
+
+			if (k + 1 < reductions.length) {
+				addToZoom(k + 1, zStart[k] / reductions[k + 1], zStart[k], zEnd[k], zValid[k], zMin[k], zMax[k], zSum[k], zSumSquares[k]);
+			}
+			zBin[k] = -1;
+		}
+
+		private void writeZoomBlock(int k) throws IOException {
+			if (zItems[k] == 0) {
+				return;
+			}
+			int n = compress(zBlock[k].array(), zBlock[k].position(), zoomOuts[k]);
+			zoomIndexes.get(k).add(new long[] {id, zBlockStart[k], id, zBlockEnd[k], zoomBytes[k], n});
+			zoomBytes[k] += n;
+			zBlock[k].clear();
+			zItems[k] = 0;
+		}
+
+		/** zlib compress a block to a part file
+		 * @return compressed bytes
+		 */
+		private int compress(byte[] b, int n, FileOutputStream out) throws IOException {
+			maxBlock = Math.max(maxBlock, n);
+			deflater.reset();
+			deflater.setInput(b, 0, n);
+			deflater.finish();
+			int len = 0;
+			while (!deflater.finished()) {
+				if (len == zbuf.length) {
+					zbuf = Arrays.copyOf(zbuf, 2 * zbuf.length);
+				}
+				len += deflater.deflate(zbuf, len, zbuf.length - len);
+			}
+			out.write(zbuf, 0, len);
+			return len;
+		}
+
+		/** Bytes of compressed data written */
+		@Override
+		public long getPosition() {
+			return dataBytes;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		/** Write the last blocks and records of the chromosome, and free the buffers */
+		@Override
+		public void close() throws IOException {
+			if (dataOut == null) {
+				open();
+			}
+			writeDataBlock();
+			for (int k = 0; k < reductions.length; k++) {
+				if (zBin[k] >= 0) {
+					endZoomRecord(k);
+				}
+				writeZoomBlock(k);
+				zoomOuts[k].close();
+			}
+			dataOut.close();
+			deflater.end();
+			starts = null;
+			ends = null;
+			values = null;
+			zbuf = null;
+			zBlock = null;
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads a chromosome's lines of a coverage .bed file as the bins of a dense file (one line per bin, see ChromIndex.Entry)
+ * A line covering several bins is read as a bin at a time, and the bins between lines are read with a read count of 0
+ * !! The bins read run from the first line's start to the last line's end, bins of 0 before or after them are not read !!
+ * Lines must be sorted and not overlap (see ChromIndex.Entry.isOrdered)
+ * Reading a stream, the lines are read up to the next chromosome, and checked to be sorted and on the bins as they are read
+ */
+class BinReader implements Closeable {
+	private BedReader reader;
+	/** False if reading a stream's reader, left open for the next chromosome */
+	private boolean ownReader;
+	private int binSize;
+
+	/** True if the reader holds a line not yet read to its end */
+	private boolean pending;
+	/** True if the reader holds the first line of the next chromosome */
+	private boolean nextChrom;
+	/** Start of the next bin */
+	private long pos;
+
+	//-- Current bin --
+	private int start;
+	private int end;
+	private int count;
+
+	/** Constructor for reading the lines in a byte range of a file
+	 * @param f - coverage .bed file
+	 * @param from - offset of the first line to read
+	 * @param to - offset after the last line to read
+	 * @param bS - bin size (see ChromIndex.Entry.getIntervalSize)
+	 */
+	public BinReader(File f, long from, long to, int bS) throws IOException {
+		reader = new BedReader(f, from, to);
+		ownReader = true;
+		binSize = bS;
+		pending = false;
+		nextChrom = false;
+		pos = Long.MIN_VALUE;
+	}
+
+	/** Constructor for reading a chromosome's lines from a stream, from the line the reader holds up to the next chromosome
+	 * @param r - reader holding the chromosome's first line (not closed on close)
+	 * @param bS - bin size
+	 */
+	public BinReader(BedReader r, int bS) {
+		reader = r;
+		ownReader = false;
+		binSize = bS;
+		pending = true;
+		nextChrom = false;
+		pos = r.getStart();
+	}
+
+	public String getChrom() {
+		return reader.getChrom();
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/** True if the lines ended at the start of another chromosome (left held by the reader) */
+	public boolean hasNextChrom() {
+		return nextChrom;
+	}
+
+	/**
+	 * Read the next bin
+	 * @return false if there are no bins left
+	 */
+	public boolean next() throws IOException {
+		if (!pending) {
+			if (!reader.next()) {
+				return false;
+			}
+			if (pos == Long.MIN_VALUE) {
+				pos = reader.getStart();
+			}
+			else if (reader.chromChanged()) {
+				nextChrom = true;
+				return false;
+			}
+			else if (reader.getStart() < pos || (reader.getStart() - pos) % binSize != 0) {
+				throw new IOException("Lines must be sorted, not overlap, and start on bins of " + binSize + " bp: "
+						+ reader.getChrom() + "\t" + reader.getStart() + "\t" + reader.getEnd());
+			}
+			pending = true;
+		}
+
+		start = (int) pos;
+		if (pos < reader.getStart()) { // between lines
+			end = (int) (pos + binSize);
+			count = 0;
+		}
+		else {
+			end = (int) Math.min(pos + binSize, reader.getEnd());
+			count = reader.getCount();
+			pending = end < reader.getEnd();
+		}
+		pos += binSize;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (ownReader) {
+			reader.close();
+		}
+	}
+
+}
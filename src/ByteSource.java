@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the bytes of an input file, read a part at a time
+ * From the file itself (MappedSource), or decompressed from a BGZF file (BgzfSource)
+ */
+interface ByteSource extends Closeable {
+
+	/** Number of bytes (uncompressed) */
+	public long size();
+
+	/**
+	 * Bytes of a part of the file
+	 * @param offset - offset of the part
+	 * @param length - bytes in the part, at most getMapSize
+	 * @return buffer holding the part from index 0
+	 */
+	public ByteBuffer map(long offset, int length) throws IOException;
+
+	/** Largest part mapped at a time */
+	public int getMapSize();
+
+}
@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Integrates a chromosome of coverage files given by Integrator, calculating each file's cMBFs as the files are swept along together
+ * Each file's window walks its bins (see WindowWalk) in step with the others, so no cMBF file is written or read
+ * The cMBFs are rounded to 5 decimal places as printed in a Calculator output file, so the products are the same as integrating those files
+ */
+class CalcIntegrateChrom extends IntegrateChrom {
+	/** Window size (in bp) */
+	private static int windowbpSize;
+	/** Median multiple */
+	private static double medianMult;
+
+	/** Output of each file's cMBFs for the chromosome, null if not kept */
+	private File[] trackFiles;
+
+	/** Constructor for setting up calculation and integration
+	 * @param idx - index of each coverage file to integrate
+	 * @param cE - index entry of the chromosome in each file (null if not in the file)
+	 * @param c - chromosome
+	 * @param oF - output file for the chromosome
+	 * @param p - output writer, or null to print the products in full to oF
+	 * @param tF - output file for each file's cMBFs, or null to keep only the products
+	 */
+	public CalcIntegrateChrom(ChromIndex[] idx, ChromIndex.Entry[] cE, String c, File oF, TrackWriter p, File[] tF) {
+		super(idx, cE, c, oF, p);
+		trackFiles = tF;
+	}
+
+	/** Set window size and median multiple
+	 * @param wS - window size (in bp)
+	 * @param mM - median multiple
+	 */
+	public static void setWindow(int wS, double mM) {
+		windowbpSize = wS;
+		medianMult = mM;
+	}
+
+	/** Walk the window along a file's bins of the chromosome */
+	@Override
+	protected TrackReader open(int i, ChromIndex index, ChromIndex.Entry entry) throws IOException {
+		BinReader bins = new BinReader(index.getFile(), entry.getFrom(), entry.getTo(), entry.getIntervalSize());
+		TrackWriter out = null;
+		if (trackFiles != null && isCompressed()) {
+			out = new BedGraphWriter(new BgzfOutputStream(new FileOutputStream(trackFiles[i]), false), false);
+		}
+		else if (trackFiles != null) {
+			out = new BedGraphWriter(trackFiles[i]);
+		}
+		return new CalculatedTrack(bins, WindowWalk.ofChrom(bins, windowbpSize, entry.getIntervalSize(), medianMult), out);
+	}
+
+	/** A file's cMBFs as they are calculated, rounded as printed, and written to the file's own output if kept */
+	private static class CalculatedTrack implements TrackReader {
+		private BinReader bins;
+		/** Walk of the chromosome, null if it has no bins */
+		private WindowWalk walk;
+		private TrackWriter out;
+		private double value;
+
+		public CalculatedTrack(BinReader b, WindowWalk w, TrackWriter o) {
+			bins = b;
+			walk = w;
+			out = o;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (walk == null || !walk.next()) {
+				return false;
+			}
+			value = BedGraphWriter.rounded5(walk.getValue());
+			if (out != null) {
+				out.write(walk.getChrom(), walk.getStart(), walk.getEnd(), walk.getValue());
+			}
+			return true;
+		}
+
+		@Override
+		public String getChrom() {
+			return walk.getChrom();
+		}
+
+		@Override
+		public int getStart() {
+			return walk.getStart();
+		}
+
+		@Override
+		public int getEnd() {
+			return walk.getEnd();
+		}
+
+		@Override
+		public double getValue() {
+			return value;
+		}
+
+		@Override
+		public void close() throws IOException {
+			bins.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+}
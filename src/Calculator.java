@@ -1,12 +1,22 @@
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -30,10 +40,39 @@ public class Calculator {
 	private static String inBed;
 	
 	private static String baseName;
-	private static File chromDir;
-	private static String chromDirName;
+	private static String outDirName;
 	private static String outBaseName;
 	private static String spacer;
+	/** Write only the whole genome file, each chromosome straight into its part */
+	private static boolean singleFile;
+	/** Write the binary .cmbf format instead of bedGraph */
+	private static boolean binary;
+	/** Write only a whole genome bigWig file */
+	private static boolean bigWig;
+	/** Index the whole genome output file for looking up positions (see TrackQuery) */
+	private static boolean indexOutput;
+	/** Merge adjacent intervals with the same printed cMBF into one line */
+	private static boolean runLength;
+	/** Write bed output compressed as BGZF */
+	private static boolean compressed;
+	/** Bin size of the input, 0 to take each chromosome's from its line starts */
+	private static int intervalSize;
+	/** Seconds between progress lines, 0 for none */
+	private static int progressSeconds;
+	/** JSON summary output file, null if not written */
+	private static String jsonFile;
+	/** Relative error of the approximate median, 0 for the exact median */
+	private static double medianError;
+	/** True to calculate the cMBFs with a tabulated exp (see CmbfTransform) */
+	private static boolean tabulatedExp;
+	/** Target regions file, null to calculate whole chromosomes */
+	private static String regionsFile;
+	/** Number of threads */
+	private static int nThreads;
+	/** Bytes of heap the chromosomes running at once may take (see MemoryBudget) */
+	private static long memoryBudget;
+	/** Number of chromosomes completed by an earlier run, and skipped (see RunManifest) */
+	private static int resumedChroms;
 	
 	/**
 	 * Main method, entry point for jar
@@ -45,35 +84,170 @@ public class Calculator {
 		//-- Parse options --
 		parseOptions(args);
 		
-		//-- Split chromosome files --
-		ArrayList<File> chromFiles = null;
+		//-- Stream stdin to stdout, with no files --
+		if (inBed.equals("-")) {
+			streamStdin();
+			return;
+		}
+		
+		PhaseTimer timer = new PhaseTimer();
+		
+		//-- Index chromosomes (from the sidecar index if calculating target regions) --
+		ChromIndex index = null;
+		Regions regions = null;
 		try {
-			chromFiles = splitChromFiles(inBed);
-		} catch (FileNotFoundException e) {
+			if (regionsFile != null) {
+				regions = Regions.read(new File(regionsFile));
+			}
+			File inFile = new File(inBed);
+			File readable = BgzfSource.readable(inFile, inFile.getAbsoluteFile().getParentFile());
+			index = regions != null && readable == inFile ? ChromIndex.open(readable, nThreads) : ChromIndex.build(readable, nThreads);
+		} catch (IOException e) {
 			System.err.println(e.getMessage());	
 			System.exit(1);
 		}
+		timer.end("Indexed");
+		makeOutDir();
+		ArrayList<ChromIndex.Entry> entries = index.getEntries();
+		if (intervalSize > 0) {
+			for (ChromIndex.Entry e : entries) {
+				if (!e.setIntervalSize(intervalSize)) {
+					System.err.println("Lines of " + e.getChrom() + " do not start on bins of the interval size " + intervalSize);
+					System.exit(1);
+				}
+			}
+		}
+		if (regions != null) {
+			entries = regionEntries(entries, regions);
+		}
 		
+		//-- Reserve each chromosome's part of the whole genome file, if writing it directly --
+		RandomAccessFile wholeFile = null;
+		long[] wholeOffsets = null;
+		BigWigWriter bigWigOut = null;
+		if (bigWig) {
+			int intervalSize = Integer.MAX_VALUE;
+			long maxSpan = 0;
+			for (ChromIndex.Entry e : entries) {
+				intervalSize = Math.min(intervalSize, e.getIntervalSize());
+				maxSpan = Math.max(maxSpan, (long) e.getLastEnd() - e.getFirstStart());
+			}
+			bigWigOut = new BigWigWriter(new File(bigWigFileName()), BigWigWriter.zoomReductions(intervalSize, maxSpan), true);
+		}
+		else if (singleFile) {
+			wholeOffsets = regions == null ? reserveWholeChrFile(entries) : null;
+			if (wholeOffsets == null) {
+				System.out.println("Output size not known ahead (" + (regions != null ? "target regions" : runLength ? "runs merged" : compressed ? "compressed" : "lines out of order, or ending within a bin") + "), merging chromosome files instead.");
+			}
+			else {
+				wholeFile = new RandomAccessFile(wholeChrFileName(), "rw");
+				wholeFile.setLength(wholeOffsets[entries.size()]);
+			}
+		}
+		
+		//-- Set up each chromosome's process, skipping those completed by an earlier run of the same command (bigWig is written whole at the end) --
+		ProcessChromFile[] workers = new ProcessChromFile[entries.size()];
+		File[] resumed = new File[entries.size()];
+		RunManifest manifest = null;
+		try {
+			if (bigWigOut == null) {
+				manifest = RunManifest.open(new File(manifestFileName()), runParams(), index.getFile());
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				ProcessChromFile worker;
+				if (bigWigOut != null) {
+					worker = new ProcessChromFile(index.getFile(), entries.get(i), new File(bigWigFileName()), bigWigOut.addChrom(entries.get(i).getChrom()));
+				}
+				else if (wholeFile != null) {
+					worker = new ProcessChromFile(index.getFile(), entries.get(i), new File(wholeChrFileName()), wholeFile.getChannel(), wholeOffsets[i]);
+				}
+				else {
+					worker = new ProcessChromFile(index.getFile(), entries.get(i), outDirName + spacer);
+				}
+				if (regions != null) {
+					worker.setRegions(regions.getStarts(entries.get(i).getChrom()), regions.getEnds(entries.get(i).getChrom()));
+				}
+				if (manifest != null && manifest.isComplete(entries.get(i), worker.getOutFile(), partOffset(wholeOffsets, i), partLength(wholeOffsets, i))) {
+					resumed[i] = worker.getOutFile();
+					resumedChroms++;
+				}
+				else {
+					workers[i] = worker;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		if (resumedChroms > 0) {
+			System.out.println("Resuming: " + resumedChroms + " of " + entries.size() + " chromosomes completed by an earlier run (see " + manifestFileName() + ").");
+		}
 		
-		//-- Parallel process chromosomes -- 
-		int nThreads = Runtime.getRuntime().availableProcessors();
-		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		//-- Parallel process chromosomes (each split into tiles run in the same pool) -- 
+		ForkJoinPool executor = new ForkJoinPool(nThreads);
+		RunMetrics.startProgress(progressSeconds, executor);
+		final MemoryBudget budget = new MemoryBudget(memoryBudget);
+		ProcessChromFile.setBudget(budget);
 		
 		ArrayList<Future<File>> futureList = new ArrayList<Future<File>>();
 		ArrayList<File> outFileList = new ArrayList<File>();
 		
-		// Execute ProcessChromFiles for each file
-		for (File f : chromFiles) {
-			Callable<File> worker = new ProcessChromFile(chromDirName, f);
-			Future<File> submit = executor.submit(worker);
-			futureList.add(submit);
+		// Execute ProcessChromFiles for each chromosome, longest first, each once its memory fits in the budget (outputs are still in the given order)
+		for (int i = 0; i < entries.size(); i++) {
+			futureList.add(null);
+		}
+		for (int i : longestFirst(entries)) {
+			if (workers[i] == null) {
+				continue;
+			}
+			ProcessChromFile worker = workers[i];
+			worker.setMetrics(RunMetrics.addChrom(entries.get(i).getChrom(), worker.getBins()));
+			final long need = ProcessChromFile.memoryNeed(entries.get(i));
+			if (need > budget.getCapacity()) {
+				System.out.println(entries.get(i).getChrom() + " needs about " + (need >> 20) + " MB, more than the memory budget of " + (budget.getCapacity() >> 20) + " MB, running it alone.");
+			}
+			budget.acquire(need);
+			final ProcessChromFile admitted = worker;
+			final RunManifest done = manifest;
+			final ChromIndex.Entry entry = entries.get(i);
+			final long offset = partOffset(wholeOffsets, i);
+			final long length = partLength(wholeOffsets, i);
+			futureList.set(i, executor.submit(new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					File f;
+					try {
+						f = admitted.call();
+					} finally {
+						budget.release(need);
+					}
+					if (done != null) {
+						try {
+							done.complete(entry, f, offset, length);
+						} catch (IOException e) {
+							System.err.println("Unable to add " + entry.getChrom() + " to the run manifest: " + e.getMessage());
+						}
+					}
+					return f;
+				}
+			}));
 		}
 		
 		// Get the resulting output files from each process for concatenation
-		for (Future<File> future : futureList) {
+		for (int i = 0; i < futureList.size(); i++) {
+			if (resumed[i] != null) {
+				System.out.println(entries.get(i).getChrom() + " completed by an earlier run");
+				outFileList.add(resumed[i]);
+				continue;
+			}
             try {
-            	File f = future.get();
-                System.out.println(f.getPath() + " completed");
+            	File f = futureList.get(i).get();
+            	if (wholeFile != null || bigWigOut != null) {
+            		System.out.println(entries.get(i).getChrom() + " completed");
+            	}
+            	else {
+            		System.out.println(f.getPath() + " completed");
+            	}
             	outFileList.add(f);
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -84,29 +258,58 @@ public class Calculator {
 		
 		executor.shutdown();
 		executor.awaitTermination(12, TimeUnit.HOURS);
+		RunMetrics.stopProgress();
+		timer.end("Calculated");
 		
 		//-- Concatenate files --
-		try {
-			mergeWholeChrFile(outFileList);
-		} catch (FileNotFoundException e) {
-			System.err.println(e.getMessage());
+		if (bigWigOut != null) {
+			try {
+				bigWigOut.write();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
 		}
-		
-		//-- Clean up Chrom files and directory--
-		boolean clean = true;
-		for (File f: chromFiles) {
-			clean = clean && f.delete();
+		else if (wholeFile != null) {
+			wholeFile.close();
+		}
+		else {
+			try {
+				mergeWholeChrFile(outFileList);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
 		}
-		clean = clean && chromDir.delete();
 		
-		if (!clean) {
-			System.out.println("Unable to delete chromosome files.");
+		//-- Clean up chromosome files, if only the whole genome file was asked for --
+		if (singleFile && wholeFile == null) {
+			boolean clean = true;
+			for (File f : outFileList) {
+				clean = clean && f.delete();
+			}
+			if (!clean) {
+				System.out.println("Unable to delete chromosome files.");
+			}
 		}
-		else {
-			System.out.println("Split chromosome bed files cleaned.");
+		if (manifest != null) {
+			manifest.close(singleFile && wholeFile == null);
 		}
 		
-		System.out.println("Completed.");
+		timer.end("Merged");
+		if (indexOutput) {
+			try {
+				ChromIndex.open(new File(wholeChrFileName()), nThreads, true);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			timer.end("Indexed output");
+		}
+		if (medianError > 0) {
+			printMedianError(medianError);
+		}
+		if (jsonFile != null) {
+			writeSummary(timer);
+		}
+		System.out.println(String.format(Locale.ROOT, "Completed in %.2f s.", timer.total()));
 	}
 	
 	/**
@@ -117,7 +320,7 @@ public class Calculator {
 		//-- Set up CLI option parsing -- 
 		Options options = new Options();
 		
-		Option infile = new Option("i", "input", true, "[req] input file path, must be a bed file");
+		Option infile = new Option("i", "input", true, "[req] input file path, must be a bed file (.bed, or .bed.gz compressed by gzip or bgzip), or - to read stdin and write the cMBFs to stdout");
 		infile.setRequired(true);
 		options.addOption(infile);
 		
@@ -137,6 +340,62 @@ public class Calculator {
 		dZ.setRequired(false);
 		options.addOption(dZ);
 		
+		Option single = new Option("s", "singleFile", false, "[opt] write only the whole genome file, each chromosome straight into its part of it");
+		single.setRequired(false);
+		options.addOption(single);
+		
+		Option bin = new Option("b", "binary", false, "[opt] write the binary .cmbf format instead of bed (see CmbfExport for bed)");
+		bin.setRequired(false);
+		options.addOption(bin);
+		
+		Option bw = new Option("g", "bigWig", false, "[opt] write only the whole genome file, as bigWig with zoom levels");
+		bw.setRequired(false);
+		options.addOption(bw);
+		
+		Option iSize = new Option("n", "intervalSize", true, "[opt] bin size of the input, taken from the line starts if not given (lines may cover several bins, bins with no line have a read count of 0)");
+		iSize.setRequired(false);
+		options.addOption(iSize);
+		
+		Option rl = new Option("r", "runLength", false, "[opt] merge adjacent intervals with the same cMBF into one line");
+		rl.setRequired(false);
+		options.addOption(rl);
+		
+		Option bgzf = new Option("c", "bgzf", false, "[opt] write bed output compressed as BGZF (.bed.gz, readable by gzip and tabix)");
+		bgzf.setRequired(false);
+		options.addOption(bgzf);
+		
+		Option progress = new Option("p", "progress", true, "[opt] seconds between progress lines (bins calculated, rate, threads, heap), 0 for none, default: 60");
+		progress.setRequired(false);
+		options.addOption(progress);
+		
+		Option json = new Option("j", "json", true, "[opt] write a JSON summary of the run to this file (phase times, and each chromosome's bins, rate and time reading, calculating, formatting and writing)");
+		json.setRequired(false);
+		options.addOption(json);
+		
+		Option approx = new Option("a", "approxMedian", true, "[opt] estimate the noise from an approximate median in fixed memory, for very large windows: medians of 1024 reads or more are within this relative error (e.g. 0.01, at least 0.0001), smaller ones are exact");
+		approx.setRequired(false);
+		options.addOption(approx);
+		
+		Option tabExp = new Option("x", "tabulatedExp", false, "[opt] calculate the cMBFs with a tabulated exp, within 1e-12 of Math.exp (the 5 decimals written are the same unless a cMBF is that close to a rounding boundary)");
+		tabExp.setRequired(false);
+		options.addOption(tabExp);
+		
+		Option threads = new Option("t", "threads", true, "[opt] number of threads, default: number of processors");
+		threads.setRequired(false);
+		options.addOption(threads);
+		
+		Option memory = new Option("M", "memoryBudget", true, "[opt] MB of heap the chromosomes running at once may take (estimated from the window size and tiles held), default: 3/4 of the maximum heap");
+		memory.setRequired(false);
+		options.addOption(memory);
+		
+		Option targets = new Option("R", "regions", true, "[opt] calculate only the intervals overlapping the regions of this bed file (chromosome, start, end), reading only the input around them (the input's index is kept in <input>.cidx for the next run)");
+		targets.setRequired(false);
+		options.addOption(targets);
+		
+		Option indexOut = new Option("I", "indexOutput", false, "[opt] index the whole genome output file in <output>.cidx, for looking up positions with TrackQuery");
+		indexOut.setRequired(false);
+		options.addOption(indexOut);
+		
 		Option help = new Option("h", "help", false, "");
 		options.addOption(help);
 		
@@ -173,8 +432,8 @@ public class Calculator {
 		if (cmd.hasOption("o")) {
 			outBaseName = cmd.getOptionValue("o");
 		}
-		if (!inBed.endsWith(".bed")) {
-			System.err.println("Incorrect input filetype (must be a .bed).");
+		if (!inBed.equals("-") && !inBed.endsWith(".bed") && !inBed.endsWith(".bed.gz")) {
+			System.err.println("Incorrect input filetype (must be a .bed or .bed.gz, or - for stdin).");
 			System.exit(0);
 		}
 		
@@ -198,136 +457,280 @@ public class Calculator {
 			}
 			defZero = mrc;
 		}
+		if (cmd.hasOption("n")) {
+			intervalSize = Integer.parseInt(cmd.getOptionValue("n"));
+			if (intervalSize <= 0) {
+				System.err.println("Interval size must be greater than 0.");
+				System.exit(0);
+			}
+		}
+		progressSeconds = 60;
+		if (cmd.hasOption("p")) {
+			progressSeconds = Integer.parseInt(cmd.getOptionValue("p"));
+			if (progressSeconds < 0) {
+				System.err.println("Seconds between progress lines must be 0 or more.");
+				System.exit(0);
+			}
+		}
+		jsonFile = cmd.getOptionValue("j");
+		regionsFile = cmd.getOptionValue("R");
+		medianError = 0;
+		if (cmd.hasOption("a")) {
+			medianError = Double.parseDouble(cmd.getOptionValue("a"));
+			if (medianError < MedianSketch.MIN_ERROR || medianError >= 1) {
+				System.err.println("Relative error of the approximate median must be 0.0001 <= e < 1.");
+				System.exit(0);
+			}
+		}
+		tabulatedExp = cmd.hasOption("x");
+		nThreads = Runtime.getRuntime().availableProcessors();
+		if (cmd.hasOption("t")) {
+			nThreads = Integer.parseInt(cmd.getOptionValue("t"));
+			if (nThreads <= 0) {
+				System.err.println("Number of threads must be greater than 0.");
+				System.exit(0);
+			}
+		}
+		memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+		if (cmd.hasOption("M")) {
+			memoryBudget = Long.parseLong(cmd.getOptionValue("M")) << 20;
+			if (memoryBudget <= 0) {
+				System.err.println("Memory budget must be greater than 0.");
+				System.exit(0);
+			}
+		}
+		singleFile = cmd.hasOption("s");
+		binary = cmd.hasOption("b");
+		bigWig = cmd.hasOption("g");
+		if (binary && bigWig) {
+			System.err.println("Binary and bigWig output cannot both be given.");
+			System.exit(0);
+		}
+		runLength = cmd.hasOption("r");
+		if (binary && runLength) {
+			System.err.println("Binary output cannot be run-length merged.");
+			System.exit(0);
+		}
+		compressed = cmd.hasOption("c");
+		if (compressed && (binary || bigWig)) {
+			System.err.println("Only bed output can be compressed.");
+			System.exit(0);
+		}
+		indexOutput = cmd.hasOption("I");
+		if (indexOutput && bigWig) {
+			System.err.println("bigWig output holds its own index, -I cannot be given with -g.");
+			System.exit(0);
+		}
+		if (inBed.equals("-") && (singleFile || binary || bigWig || jsonFile != null || regionsFile != null || indexOutput)) {
+			System.err.println("Input from stdin is written to stdout as bed, -s, -b, -g, -j, -R and -I cannot be given.");
+			System.exit(0);
+		}
 		
 		//-- Set static parameters --
 		IntStats.setdefZero(defZero);
+		IntWindow.setMedianError(medianError);
+		CmbfTransform.setTabulated(tabulatedExp);
 		ProcessChromFile.setWinSize(windowbpSize);
 		ProcessChromFile.setMedMult(medianMult);
 		ProcessChromFile.setOutBaseName(outBaseName);
+		ProcessChromFile.setBinary(binary);
+		ProcessChromFile.setRunLength(runLength);
+		ProcessChromFile.setCompressed(compressed);
+	}
+	
+	/**
+	 * Order to run chromosomes in, longest first (by input bytes), so the longest do not start last and hold up the end of the run
+	 * @param entries - chromosomes in the order they are given in
+	 * @return indexes of the chromosomes
+	 */
+	private static ArrayList<Integer> longestFirst(final ArrayList<ChromIndex.Entry> entries) {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < entries.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				ChromIndex.Entry x = entries.get(a);
+				ChromIndex.Entry y = entries.get(b);
+				return Long.compare(y.getTo() - y.getFrom(), x.getTo() - x.getFrom());
+			}
+		});
+		return order;
 	}
 	
 	/**
-	 * Given a genome-wide input .bed file, split into smaller chromosome .bed files
-	 * @param infile - input .bed file
-	 * @return ArrayList of the split chromosome .bed files
-	 * @throws FileNotFoundException - if any files cannot be found, read or written
+	 * Index entries of the chromosomes with target regions, in the order of the input
+	 * @param entries - index entries of the input's chromosomes
+	 * @param regions - target regions
+	 * @return entries of the chromosomes with regions
 	 */
-	public static ArrayList<File> splitChromFiles(String infile) throws FileNotFoundException {
-		//-- Set up scanner for reading input file--
-		ArrayList<File> chromFiles = new ArrayList<File>();
-		Scanner sc;
+	private static ArrayList<ChromIndex.Entry> regionEntries(ArrayList<ChromIndex.Entry> entries, Regions regions) {
+		ArrayList<ChromIndex.Entry> kept = new ArrayList<ChromIndex.Entry>();
+		HashSet<String> found = new HashSet<String>();
+		for (ChromIndex.Entry e : entries) {
+			if (regions.has(e.getChrom())) {
+				kept.add(e);
+				found.add(e.getChrom());
+			}
+		}
+		for (String chrom : new TreeSet<String>(regions.getChroms())) {
+			if (!found.contains(chrom)) {
+				System.out.println("No coverage of " + chrom + ", skipping its regions.");
+			}
+		}
+		return kept;
+	}
+	
+	/** Print how many medians were approximate, and their error bound */
+	static void printMedianError(double e) {
+		long n = MedianSketch.getApproximated();
+		if (n == 0) {
+			System.out.println("Approximate median: every median was below " + MedianSketch.EXACT + " reads, so exact.");
+		}
+		else {
+			System.out.println("Approximate median: " + n + " medians of " + MedianSketch.EXACT + " reads or more, each within a relative error of " + e
+					+ " (cMBF Z scores within " + String.format(Locale.ROOT, "%.4g", e / (1 - e)) + "), the rest exact.");
+		}
+	}
+	
+	/** Write the JSON summary of the run (see RunMetrics) */
+	private static void writeSummary(PhaseTimer timer) {
+		LinkedHashMap<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("tool", "Calculator");
+		params.put("input", inBed);
+		params.put("windowSize", windowbpSize);
+		params.put("medianMultiple", medianMult);
+		params.put("defaultZero", defZero);
+		params.put("medianError", medianError);
+		params.put("approximatedMedians", MedianSketch.getApproximated());
+		params.put("tabulatedExp", tabulatedExp);
+		params.put("regions", regionsFile);
+		params.put("resumedChromosomes", resumedChroms);
+		params.put("threads", nThreads);
+		params.put("memoryBudgetBytes", memoryBudget);
+		params.put("output", bigWig ? bigWigFileName() : singleFile ? wholeChrFileName() : outDirName);
 		try {
-			sc = new Scanner(new File(infile));
-		} catch (FileNotFoundException e) {
-			throw new FileNotFoundException("File not found: " + infile);
+			RunMetrics.writeJson(new File(jsonFile), params, timer);
+		} catch (IOException e) {
+			System.err.println("Unable to write summary: " + e.getMessage());
 		}
-		
-		//-- Set up Chrom directory and file names--
-		baseName = infile.substring(0, infile.length() - 4);
-		chromDirName = baseName + "_ChromFiles";
-		spacer = "/";
-		
-		chromDir = new File(chromDirName);
-		boolean folderMade = chromDir.mkdir();
-		
-		if (!chromDir.exists() && !folderMade) {
-			spacer = "_";
+	}
+	
+	/** Calculate the cMBFs of the lines on stdin, each chromosome as it arrives, writing them to stdout (see ChromStream) */
+	private static void streamStdin() {
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
+		if (compressed) {
+			out = new BgzfOutputStream(out);
 		}
-		
-		//-- Read input files and split into chromosome files--
-		if (!sc.hasNextLine()) {
-			sc.close();
-			return null;
+		TrackWriter pw = new BedGraphWriter(out, false);
+		if (runLength) {
+			pw = new RunLengthWriter(pw, true);
 		}
-		
-		String line = null;
-		String chrom = null;
-		while (chrom == null && sc.hasNextLine()) {
-			line = sc.nextLine();
-			chrom = parseLineChrom(line);
+		try {
+			new ChromStream(windowbpSize, medianMult, intervalSize).process(new FileInputStream(FileDescriptor.in), pw);
+			pw.close();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
 		}
+	}
+	
+	/** Set up the output directory, <input base>_out (output files are prefixed instead if it cannot be made) */
+	private static void makeOutDir() {
+		baseName = inBed.substring(0, inBed.length() - (inBed.endsWith(".gz") ? 7 : 4));
+		outDirName = baseName + "_out";
+		spacer = "/";
 		
-		File cFile = new File(chromDirName + spacer + chrom + ".bed");
-		chromFiles.add(cFile);
-		PrintWriter pw = new PrintWriter(cFile);
-		pw.println(line);
+		File outDir = new File(outDirName);
+		boolean folderMade = outDir.mkdir();
 		
-		//separate files
-		while(sc.hasNextLine()) { 
-			String nChrom = null;
-			while (nChrom == null && sc.hasNextLine()) {
-				line = sc.nextLine();
-				nChrom = parseLineChrom(line);
-			}
-			if (!chrom.equals(nChrom)) {
-				pw.close();
-				chrom = nChrom;
-				cFile = new File(chromDirName + spacer + nChrom + ".bed");
-				chromFiles.add(cFile);
-				pw = new PrintWriter(cFile);
-			}
-			pw.println(line);
+		if (!outDir.exists() && !folderMade) {
+			spacer = "_";
 		}
-		
-		pw.close();
-		sc.close();
-		
-		return chromFiles;
+	}
+	
+	/** Name of the whole genome output file */
+	private static String wholeChrFileName() {
+		return outDirName + spacer + outBaseName + "_allChr" + ProcessChromFile.getExtension();
+	}
+	
+	/** Name of the run manifest (see RunManifest) */
+	private static String manifestFileName() {
+		return outDirName + spacer + outBaseName + "_run.manifest";
+	}
+	
+	/** Parameters the outputs depend on, as a line of the run manifest */
+	private static String runParams() {
+		String regions = "none";
+		if (regionsFile != null) {
+			File f = new File(regionsFile);
+			regions = f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+		}
+		return "windowSize=" + windowbpSize + "\tmedianMultiple=" + medianMult + "\tdefaultZero=" + defZero + "\tintervalSize=" + intervalSize
+				+ "\tmedianError=" + medianError + "\ttabulatedExp=" + tabulatedExp + "\trunLength=" + runLength + "\tformat=" + ProcessChromFile.getExtension()
+				+ "\tregions=" + regions;
+	}
+	
+	/** Offset of a chromosome's output in its file: its part of the whole genome file, if writing it directly (see reserveWholeChrFile) */
+	private static long partOffset(long[] wholeOffsets, int i) {
+		return wholeOffsets != null ? wholeOffsets[i] : 0;
+	}
+	
+	/** Length of a chromosome's output, if its part of the whole genome file, else -1 */
+	private static long partLength(long[] wholeOffsets, int i) {
+		return wholeOffsets != null ? wholeOffsets[i + 1] - wholeOffsets[i] : -1;
+	}
+	
+	/** Name of the whole genome bigWig output file */
+	private static String bigWigFileName() {
+		return outDirName + spacer + outBaseName + "_allChr.bw";
 	}
 	
 	/**
-	 * Checks if the given input line is able to be parsed
-	 * @param line - line to be parsed
-	 * @return the chromosome "chr_" given by the line, null if unable to be fully parsed 
+	 * Work out where each chromosome's output goes in the whole genome file
+	 * @param entries - chromosomes in the order they are given in
+	 * @return offset of each chromosome's part, then the file size, or null if any output size is not known ahead
 	 */
-	public static String parseLineChrom(String line) {
-		String[] ra = line.split("\\s+");
-
-		if (ra[0].startsWith("chr")) {
-			return ra[0];
+	private static long[] reserveWholeChrFile(ArrayList<ChromIndex.Entry> entries) {
+		long[] offsets = new long[entries.size() + 1];
+		for (int i = 0; i < entries.size(); i++) {
+			long size = ProcessChromFile.outputSize(entries.get(i));
+			if (size < 0) {
+				return null;
+			}
+			offsets[i + 1] = offsets[i] + size;
 		}
-		
-		try {
-			Integer.parseInt(ra[1]);
-			Integer.parseInt(ra[2]);
-			Integer.parseInt(ra[3]);
-		} catch (NumberFormatException e) {
-			return null;
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
-		return null;
+		return offsets;
 	}
 	
 	/**
 	 * Concatenate output chromosome files into one genome file (in order that it was given in)
+	 * Files are copied channel to channel (FileChannel.transferTo), without reading them line by line
 	 * @param outChrFiles - ArrayList of output chromosome files
-	 * @throws FileNotFoundException - if unable to find a chromosome file, or if unable to write to file
+	 * @throws IOException - if unable to find a chromosome file, or if unable to write to file
 	 */
-	public static void mergeWholeChrFile(ArrayList<File> outChrFiles) throws FileNotFoundException {
-		String wChrFileName = chromDirName.substring(0, chromDirName.lastIndexOf("_ChromFiles"))
-				+ "_out" + spacer + outBaseName + "_allChr.bed";
-		File wChrFile = new File (wChrFileName);
-		PrintWriter wholePW = null;
+	public static void mergeWholeChrFile(ArrayList<File> outChrFiles) throws IOException {
+		String wChrFileName = wholeChrFileName();
+		FileOutputStream wholeOut = null;
 		try {
-			wholePW = new PrintWriter(wChrFile);
+			wholeOut = new FileOutputStream(wChrFileName);
 		} catch (FileNotFoundException e) {
 			throw new FileNotFoundException("File not found: " + wChrFileName);
 		}
-		
-		/*wholePW.println("track type=bedGraph name=\"" + wChrFileName + "\"" + " description=\"" + wChrFileName + "\" "
-				+ "visibility=full autoScale=Off alwaysZero=On maxHeightPixels=128:30:11 viewLimits=0:1"); //header */
+		FileChannel wholeChannel = wholeOut.getChannel();
 		
 		for(File cFile : outChrFiles) {
-			Scanner sc = new Scanner(cFile);
-			/*sc.nextLine(); //skip chromosome file headers*/
-			while(sc.hasNextLine()) {
-				wholePW.println(sc.nextLine());
+			FileInputStream in = new FileInputStream(cFile);
+			FileChannel cChannel = in.getChannel();
+			long size = cChannel.size();
+			for (long pos = 0; pos < size; ) {
+				pos += cChannel.transferTo(pos, size - pos, wholeChannel);
 			}
-			sc.close();
+			in.close();
 		}
 		
-		wholePW.close();
+		wholeOut.close();
 		System.out.println("Merging completed");
 	}
 	
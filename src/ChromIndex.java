@@ -0,0 +1,610 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Index of the byte range holding each chromosome's lines in a sorted coverage .bed file
+ * Built by scanning chunks of the file in parallel, then stitching the chromosome runs found in each chunk
+ * Also indexes the sections of .cmbf files (see CmbfWriter), read from their headers alone
+ * A coverage file's index can be kept in a sidecar file (see open), so it is read rather than built again
+ */
+public class ChromIndex {
+	/** Smallest chunk of the file scanned by one task */
+	private static final long MIN_CHUNK = 1 << 22;
+	/** Bytes read at a time when looking for a line start */
+	private static final int SCAN_BYTES = 1 << 16;
+	/** Positions per bucket of the linear index, as in a tabix index */
+	private static final int LINEAR_SHIFT = 14;
+	/** Extension of the sidecar index file */
+	public static final String SIDECAR = ".cidx";
+	private static final int SIDECAR_MAGIC = 0x43494458; // CIDX
+	private static final int SIDECAR_VERSION = 2;
+
+	private File file;
+	/** True if a .cmbf file */
+	private boolean binary;
+	/** Chromosomes in the order they are given in the file */
+	private ArrayList<Entry> entries;
+
+	/**
+	 * Byte range and coordinates of one chromosome's lines
+	 * The lines are taken as runs of bins on a grid (see getIntervalSize): a dense file has one line per bin,
+	 * a sparse file (such as bedtools genomecov -bg) has a line per run of bins with the same count, and leaves out zero counts
+	 */
+	public static class Entry {
+		private String chrom;
+		private long from;
+		private long to;
+		/** Number of data lines */
+		private long lines;
+		private int firstStart;
+		private int firstEnd;
+		private int lastStart;
+		private int lastEnd;
+		/** Greatest common divisor of the distances between starts, 0 if one line */
+		private int startGcd;
+		/** Greatest common divisor of the widths of the intervals before the last, 0 if one line */
+		private int widthGcd;
+		/** False if a line starts before the last one ends */
+		private boolean ordered;
+		/** Bin size given for the chromosome, 0 if taken from the line starts */
+		private int binSize;
+		/** Linear index: offset of the first line ending after the start of each bucket of positions, up to the bucket of the last end */
+		private long[] linear;
+		private int nLinear;
+
+		public Entry(String c, long f, long t, int s, int e) {
+			chrom = c;
+			from = f;
+			to = t;
+			lines = 1;
+			firstStart = s;
+			firstEnd = e;
+			lastStart = s;
+			lastEnd = e;
+			startGcd = 0;
+			widthGcd = 0;
+			ordered = e > s;
+			binSize = 0;
+			linear = new long[16];
+			nLinear = 0;
+			cover(e, f);
+		}
+
+		public String getChrom() {
+			return chrom;
+		}
+
+		/** Offset of the chromosome's first data line */
+		public long getFrom() {
+			return from;
+		}
+
+		/** Offset after the chromosome's last data line */
+		public long getTo() {
+			return to;
+		}
+
+		public long getLines() {
+			return lines;
+		}
+
+		/** Start of the chromosome's first interval */
+		public int getFirstStart() {
+			return firstStart;
+		}
+
+		/**
+		 * Interval (bin) size: the largest size whose multiples from the first start hold every line start,
+		 * the first interval's width if there is one line
+		 */
+		public int getIntervalSize() {
+			if (binSize > 0) {
+				return binSize;
+			}
+			return startGcd == 0 ? firstEnd - firstStart : startGcd;
+		}
+
+		/**
+		 * Set the interval (bin) size, in place of the one taken from the line starts
+		 * @param bS - bin size
+		 * @return false if a line does not start on a bin
+		 */
+		public boolean setIntervalSize(int bS) {
+			binSize = bS;
+			return bS > 0 && startGcd % bS == 0;
+		}
+
+		/** Number of bins from the first start to the last end, as lines of a dense file */
+		public long getBins() {
+			return ((long) lastEnd - firstStart + getIntervalSize() - 1) / getIntervalSize();
+		}
+
+		/** True if the lines are sorted and do not overlap */
+		public boolean isOrdered() {
+			return ordered;
+		}
+
+		/** True if the lines are ordered and every bin but the last is a whole interval size (the intervals before the last end on the grid) */
+		public boolean hasEvenBins() {
+			return ordered && widthGcd % getIntervalSize() == 0;
+		}
+
+		/** End of the chromosome's last interval */
+		public int getLastEnd() {
+			return lastEnd;
+		}
+
+		/**
+		 * Offset of a line at or before the first line ending after a position, from the linear index
+		 * (the first line ending after the start of the position's bucket)
+		 * @param pos - position
+		 * @return line offset, the chromosome's first if pos is before it
+		 */
+		public long offsetAt(int pos) {
+			if (pos < 0) {
+				return from;
+			}
+			return linear[Math.min(pos >> LINEAR_SHIFT, nLinear - 1)];
+		}
+
+		/** Width of the chromosome's last bin */
+		public int getLastBinSize() {
+			return (int) (lastEnd - firstStart - (getBins() - 1) * getIntervalSize());
+		}
+
+		/** Add the next data line of the chromosome */
+		private void add(int s, int e, long t) {
+			cover(e, to); // the line starts where the last ended
+			ordered = ordered && s >= lastEnd && e > s;
+			startGcd = gcd(startGcd, s - lastStart);
+			widthGcd = gcd(widthGcd, lastEnd - lastStart);
+			lastStart = s;
+			lastEnd = e;
+			lines++;
+			to = t;
+		}
+
+		/** Join the following run of the same chromosome */
+		private void join(Entry next) {
+			ordered = ordered && next.ordered && next.firstStart >= lastEnd;
+			startGcd = gcd(gcd(startGcd, next.firstStart - lastStart), next.startGcd);
+			widthGcd = gcd(gcd(widthGcd, lastEnd - lastStart), next.widthGcd);
+			lastStart = next.lastStart;
+			lastEnd = next.lastEnd;
+			lines += next.lines;
+			to = next.to;
+			for (int k = nLinear; k < next.nLinear; k++) {
+				cover((k << LINEAR_SHIFT) + 1, next.linear[k]);
+			}
+		}
+
+		/** Point the buckets of the linear index up to the one holding end - 1, not yet pointed to a line, to the line at the given offset */
+		private void cover(int e, long offset) {
+			int last = Math.max(0, (e - 1) >> LINEAR_SHIFT);
+			while (nLinear <= last) {
+				if (nLinear == linear.length) {
+					linear = Arrays.copyOf(linear, 2 * nLinear);
+				}
+				linear[nLinear++] = offset;
+			}
+		}
+
+		/** Entry of a .cmbf section, n intervals of width w from s */
+		private static Entry section(String c, long f, long t, int s, int w, int n) {
+			Entry e = new Entry(c, f, t, s, s + w);
+			e.lines = n;
+			e.lastStart = (int) (s + (long) (n - 1) * w);
+			e.lastEnd = e.lastStart + w;
+			e.startGcd = n > 1 ? w : 0;
+			e.widthGcd = n > 1 ? w : 0;
+			e.cover(e.lastEnd, f); // every bucket of the section points to its header
+			return e;
+		}
+
+		private static int gcd(int a, int b) {
+			a = Math.abs(a);
+			b = Math.abs(b);
+			while (b != 0) {
+				int r = a % b;
+				a = b;
+				b = r;
+			}
+			return a;
+		}
+
+		@Override
+		public String toString() {
+			return chrom + ":" + from + "-" + to;
+		}
+	}
+
+	private ChromIndex(File f, boolean b, ArrayList<Entry> e) {
+		file = f;
+		binary = b;
+		entries = e;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** True if the file is a .cmbf file, read with CmbfReader rather than BedReader */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public ArrayList<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Build the index of a sorted coverage .bed file
+	 * @param f - coverage .bed file
+	 * @param nThreads - number of chunks scanned at once
+	 * @return the chromosome index
+	 * @throws IOException - if the file cannot be read, or a chromosome's lines are not in one block (unsorted)
+	 */
+	public static ChromIndex build(File f, int nThreads) throws IOException {
+		return build(f, nThreads, false);
+	}
+
+	/**
+	 * Build the index of a sorted .bed file
+	 * @param f - coverage .bed file, or bedGraph file if v is true
+	 * @param nThreads - number of chunks scanned at once
+	 * @param v - true if the fourth field is a decimal value rather than a read count (see BedReader), or if a .cmbf file
+	 * @return the chromosome index
+	 * @throws IOException - if the file cannot be read, or a chromosome's lines are not in one block (unsorted)
+	 */
+	public static ChromIndex build(File f, int nThreads, boolean v) throws IOException {
+		if (v && CmbfReader.isCmbf(f)) {
+			return buildCmbf(f);
+		}
+
+		ByteSource source = MappedSource.open(f);
+		long size = source.size();
+		source.close();
+
+		//-- Scan chunks in parallel --
+		int nChunks = (int) Math.max(1, Math.min(4L * nThreads, size / MIN_CHUNK));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads, nChunks));
+		ArrayList<Future<ArrayList<Entry>>> futureList = new ArrayList<Future<ArrayList<Entry>>>();
+		for (int i = 0; i < nChunks; i++) {
+			futureList.add(executor.submit(new ChunkScan(f, size * i / nChunks, size * (i + 1) / nChunks, v)));
+		}
+
+		//-- Stitch chunk runs, joining runs of the same chromosome across chunk boundaries --
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		HashSet<String> seen = new HashSet<String>();
+		try {
+			for (Future<ArrayList<Entry>> future : futureList) {
+				for (Entry run : future.get()) {
+					stitch(entries, seen, run, f);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Indexing interrupted: " + f.getPath());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return new ChromIndex(f, false, entries);
+	}
+
+	/**
+	 * Index of a sorted coverage .bed file, read from its sidecar file (the file's path with SIDECAR added) if there is one
+	 * made for the file as it is, else built and written to the sidecar file for next time
+	 * @param f - coverage .bed file
+	 * @param nThreads - number of chunks scanned at once, if built
+	 * @return the chromosome index
+	 * @throws IOException - if the file cannot be read, or a chromosome's lines are not in one block (unsorted)
+	 */
+	public static ChromIndex open(File f, int nThreads) throws IOException {
+		return open(f, nThreads, false);
+	}
+
+	/**
+	 * Index of a sorted .bed file, read from its sidecar file if there is one made for the file as it is, else built and written to it
+	 * @param f - coverage .bed file, or bedGraph or .cmbf file if v is true
+	 * @param nThreads - number of chunks scanned at once, if built
+	 * @param v - true if the fourth field is a decimal value rather than a read count, or if a .cmbf file
+	 * @return the chromosome index
+	 * @throws IOException - if the file cannot be read, or a chromosome's lines are not in one block (unsorted)
+	 */
+	public static ChromIndex open(File f, int nThreads, boolean v) throws IOException {
+		File sidecar = new File(f.getPath() + SIDECAR);
+		if (sidecar.exists()) {
+			try {
+				ChromIndex index = readSidecar(f, sidecar, v);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException e) {
+				System.out.println("Unable to read the index " + sidecar.getPath() + ", building it again: " + e.getMessage());
+			}
+		}
+		ChromIndex index = build(f, nThreads, v);
+		try {
+			index.writeSidecar(sidecar, v);
+		} catch (IOException e) {
+			System.out.println("Unable to write the index " + sidecar.getPath() + ": " + e.getMessage());
+			sidecar.delete();
+		}
+		return index;
+	}
+
+	/** Write the index to a sidecar file, with the size and time modified of the file it indexes, and how its lines were read */
+	private void writeSidecar(File sidecar, boolean v) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), 1 << 16));
+		try {
+			out.writeInt(SIDECAR_MAGIC);
+			out.writeInt(SIDECAR_VERSION);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.writeBoolean(v);
+			out.writeBoolean(binary);
+			out.writeInt(entries.size());
+			for (Entry e : entries) {
+				out.writeUTF(e.chrom);
+				out.writeLong(e.from);
+				out.writeLong(e.to);
+				out.writeLong(e.lines);
+				out.writeInt(e.firstStart);
+				out.writeInt(e.firstEnd);
+				out.writeInt(e.lastStart);
+				out.writeInt(e.lastEnd);
+				out.writeInt(e.startGcd);
+				out.writeInt(e.widthGcd);
+				out.writeBoolean(e.ordered);
+				out.writeInt(e.nLinear);
+				for (int k = 0; k < e.nLinear; k++) {
+					out.writeLong(e.linear[k]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the index of a file from its sidecar file
+	 * @return the index, or null if the sidecar was made for another version of the file, or reading its lines otherwise (see v of open)
+	 * @throws IOException - if the sidecar file cannot be read, or is not an index
+	 */
+	private static ChromIndex readSidecar(File f, File sidecar, boolean v) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16));
+		try {
+			if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION) {
+				throw new IOException("not an index of this version");
+			}
+			if (in.readLong() != f.length() || in.readLong() != f.lastModified() || in.readBoolean() != v) {
+				return null;
+			}
+			boolean binary = in.readBoolean();
+			int n = in.readInt();
+			ArrayList<Entry> entries = new ArrayList<Entry>(n);
+			for (int i = 0; i < n; i++) {
+				Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), 0, 1);
+				e.lines = in.readLong();
+				e.firstStart = in.readInt();
+				e.firstEnd = in.readInt();
+				e.lastStart = in.readInt();
+				e.lastEnd = in.readInt();
+				e.startGcd = in.readInt();
+				e.widthGcd = in.readInt();
+				e.ordered = in.readBoolean();
+				e.nLinear = in.readInt();
+				e.linear = new long[Math.max(1, e.nLinear)];
+				for (int k = 0; k < e.nLinear; k++) {
+					e.linear[k] = in.readLong();
+				}
+				entries.add(e);
+			}
+			return new ChromIndex(f, binary, entries);
+		} catch (EOFException e) {
+			throw new IOException("truncated");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Build the index of a .cmbf file, skipping from section header to section header
+	 * @param f - .cmbf file
+	 * @return the chromosome index
+	 * @throws IOException - if the file cannot be read or a section is bad, or a chromosome's sections are not together
+	 */
+	private static ChromIndex buildCmbf(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		long size = raf.length();
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		HashSet<String> seen = new HashSet<String>();
+		byte[] magic = new byte[CmbfWriter.MAGIC.length];
+		try {
+			for (long offset = 0; offset < size; ) {
+				raf.seek(offset);
+				raf.readFully(magic);
+				if (!Arrays.equals(magic, CmbfWriter.MAGIC)) {
+					throw new IOException("Not a .cmbf section at offset " + offset + ": " + f.getPath());
+				}
+				byte[] name = new byte[raf.readUnsignedShort()];
+				raf.readFully(name);
+				int s = raf.readInt();
+				int w = raf.readInt();
+				int n = raf.readInt();
+				long to = offset + CmbfWriter.HEADER_BYTES + name.length + (long) CmbfWriter.VALUE_BYTES * n;
+				if (w <= 0 || n < 0 || to > size) {
+					throw new IOException("Bad .cmbf section at offset " + offset + ": " + f.getPath());
+				}
+				if (n > 0) {
+					stitch(entries, seen, Entry.section(new String(name, StandardCharsets.ISO_8859_1), offset, to, s, w, n), f);
+				}
+				offset = to;
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated .cmbf file: " + f.getPath());
+		} finally {
+			raf.close();
+		}
+		return new ChromIndex(f, true, entries);
+	}
+
+	/** Add a run of a chromosome's lines, joining it to the last entry if the same chromosome */
+	private static void stitch(ArrayList<Entry> entries, HashSet<String> seen, Entry run, File f) throws IOException {
+		Entry last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+		if (last != null && last.chrom.equals(run.chrom)) {
+			last.join(run);
+		}
+		else if (!seen.add(run.chrom)) {
+			throw new IOException("Lines of " + run.chrom + " are not together, input file must be sorted: " + f.getPath());
+		}
+		else {
+			entries.add(run);
+		}
+	}
+
+	/** Number of characters in the decimal form of v */
+	static int chars(int v) {
+		int n = v < 0 ? 2 : 1;
+		for (long t = Math.abs((long) v) / 10; t > 0; t /= 10) {
+			n++;
+		}
+		return n;
+	}
+
+	/** Number of characters in the decimal forms of a, a + w, ..., a + (n - 1) * w (w > 0) */
+	static long chars(long a, int w, long n) {
+		long total = 0;
+		if (n <= 0) {
+			return 0;
+		}
+		if (a < 0) {
+			for (long k = 0; k < n; k++) {
+				total += chars((int) (a + k * w));
+			}
+			return total;
+		}
+		total = n;
+		long last = a + (n - 1) * w;
+		for (long b = 10; b <= last; b *= 10) { // values of b or more have another digit
+			long k = b <= a ? 0 : (b - a + w - 1) / w;
+			total += n - k;
+		}
+		return total;
+	}
+
+	/**
+	 * Find the start of the first line at or after the given offset
+	 * @param source - file bytes
+	 * @param offset - offset in the file
+	 * @return offset of the line start, or the file size if there is none
+	 */
+	static long lineStartAfter(ByteSource source, long offset) throws IOException {
+		if (offset == 0) {
+			return 0;
+		}
+		long size = source.size();
+		long pos = offset - 1; // the line starts after a newline at offset - 1 or later
+		while (pos < size) {
+			int n = (int) Math.min(SCAN_BYTES, size - pos);
+			ByteBuffer bb = source.map(pos, n);
+			for (int i = 0; i < n; i++) {
+				if (bb.get(i) == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Find the start of the line a number of lines before the line at the given offset
+	 * @param source - file bytes
+	 * @param offset - offset of a line start
+	 * @param lines - number of lines to go back
+	 * @param floor - offset not to go back past
+	 * @return offset of the line start, or floor if there are not enough lines after it
+	 */
+	static long lineStartBefore(ByteSource source, long offset, long lines, long floor) throws IOException {
+		long newlines = lines + 1; // the line starts after the (lines + 1)th newline before offset
+		long pos = offset;
+		while (pos > floor) {
+			int n = (int) Math.min(SCAN_BYTES, pos - floor);
+			ByteBuffer bb = source.map(pos - n, n);
+			for (int i = n - 1; i >= 0; i--) {
+				if (bb.get(i) == '\n' && --newlines == 0) {
+					return pos - n + i + 1;
+				}
+			}
+			pos -= n;
+		}
+		return floor;
+	}
+
+	/** Finds the chromosome runs in the lines starting within a chunk of the file */
+	private static class ChunkScan implements Callable<ArrayList<Entry>> {
+		private File file;
+		private long from;
+		private long to;
+		private boolean values;
+
+		public ChunkScan(File f, long fr, long t, boolean v) {
+			file = f;
+			from = fr;
+			to = t;
+			values = v;
+		}
+
+		@Override
+		public ArrayList<Entry> call() throws IOException {
+			ByteSource source = MappedSource.open(file);
+			long lineFrom = lineStartAfter(source, from);
+			long lineTo = lineStartAfter(source, to);
+			source.close();
+
+			ArrayList<Entry> runs = new ArrayList<Entry>();
+			if (lineFrom >= lineTo) {
+				return runs;
+			}
+
+			BedReader reader = new BedReader(file, lineFrom, lineTo, values);
+			Entry run = null;
+			while (reader.next()) {
+				if (reader.chromChanged()) {
+					run = new Entry(reader.getChrom(), reader.getLineOffset(), reader.getNextOffset(), reader.getStart(), reader.getEnd());
+					runs.add(run);
+				}
+				else {
+					run.add(reader.getStart(), reader.getEnd(), reader.getNextOffset());
+				}
+			}
+			reader.close();
+			return runs;
+		}
+	}
+
+}
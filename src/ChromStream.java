@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+
+/**
+ * Calculates the cMBF of coverage lines read from a stream (such as stdin), written to a single output (such as stdout)
+ * Each chromosome is calculated as its lines arrive, walking the window along them (see ChromTile.walkChrom),
+ * while the stream is read ahead on another thread (see StreamSource), so the next chromosome is read while one is calculated
+ * Memory is bounded by the window and the read ahead, whatever the size of the chromosomes
+ */
+class ChromStream {
+	private int windowbpSize;
+	private double medianMult;
+	/** Bin size, 0 to take each chromosome's from the width of its first line */
+	private int intervalSize;
+
+	/** Constructor
+	 * @param wS - window size (in bp)
+	 * @param mM - median multiple
+	 * @param iS - bin size of the input, 0 to take each chromosome's from the width of its first line
+	 */
+	public ChromStream(int wS, double mM, int iS) {
+		windowbpSize = wS;
+		medianMult = mM;
+		intervalSize = iS;
+	}
+
+	/**
+	 * Calculate the cMBF of every chromosome in the stream
+	 * @param in - coverage .bed lines, each chromosome's together and sorted (gzip or BGZF compressed, or not)
+	 * @param pw - output (not closed)
+	 * @throws IOException - if the stream cannot be read, or its lines are out of order
+	 */
+	public void process(InputStream in, TrackWriter pw) throws IOException {
+		BedReader reader = new BedReader(new StreamSource(in));
+		HashSet<String> seen = new HashSet<String>();
+		boolean more = reader.next();
+		while (more) {
+			String chrom = reader.getChrom();
+			if (!seen.add(chrom)) {
+				throw new IOException("Lines of a chromosome must be together: " + chrom);
+			}
+			int iS = intervalSize > 0 ? intervalSize : reader.getEnd() - reader.getStart();
+			if (iS <= 0 || windowbpSize % iS != 0) {
+				throw new IOException("Window size must be a multiple of the interval size (" + iS + " bp for " + chrom + ", give it with -n if the first line covers several bins)");
+			}
+
+			BinReader bins = new BinReader(reader, iS);
+			ChromTile.walkChrom(bins, windowbpSize, iS, medianMult, pw, null);
+			more = bins.hasNextChrom();
+		}
+		reader.close();
+	}
+
+}
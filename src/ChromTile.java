@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the cMBF for the intervals of a chromosome whose lines start in a byte range of the input file, or that overlap a target region
+ * The window is walked from up to half a window before the tile, so the output is the same as walking the whole chromosome
+ * A region is found from the chromosome's linear index (see ChromIndex.Entry.offsetAt), so only the lines around it are read
+ * Lines are read as the bins of a dense file (see BinReader) from the chromosome's first line to its last,
+ * so sparse input missing the runs of 0 at the ends of a chromosome differs from its dense file there (see BinReader)
+ */
+class ChromTile extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	/** Positions calculated between adding to the chromosome's metrics */
+	private static final int PROGRESS_BINS = 1 << 16;
+
+	private File inFile;
+	private ChromIndex.Entry chromEntry;
+	/** Byte range of the lines to output */
+	private long from;
+	private long to;
+	/** Target region [start, end), null if a byte range */
+	private int[] region;
+	private int windowbpSize;
+	private double medianMult;
+
+	/** Output, held in memory until the tile is written in order unless printing straight to the chromosome file */
+	private TrackWriter pw;
+	/** Output held in memory, null if printing straight to the chromosome file */
+	private TileOutput tileOut;
+	/** Metrics of the chromosome, null if not kept */
+	private RunMetrics.Chrom metrics;
+
+	/** Constructor for a tile of a chromosome, held in memory until written
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome
+	 * @param f - offset of the tile's first line
+	 * @param t - offset after the tile's last line
+	 * @param wS - window size (in bp)
+	 * @param mM - median multiple
+	 * @param p - tile output, held in memory
+	 * @param m - metrics of the chromosome, or null
+	 */
+	public ChromTile(File iF, ChromIndex.Entry cE, long f, long t, int wS, double mM, TileOutput p, RunMetrics.Chrom m) {
+		inFile = iF;
+		chromEntry = cE;
+		from = f;
+		to = t;
+		windowbpSize = wS;
+		medianMult = mM;
+		pw = p;
+		tileOut = p;
+		metrics = m;
+	}
+
+	/** Constructor for the whole chromosome, printed straight to the given writer
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome
+	 * @param wS - window size (in bp)
+	 * @param mM - median multiple
+	 * @param p - chromosome output
+	 * @param m - metrics of the chromosome, or null
+	 */
+	public ChromTile(File iF, ChromIndex.Entry cE, int wS, double mM, TrackWriter p, RunMetrics.Chrom m) {
+		inFile = iF;
+		chromEntry = cE;
+		from = cE.getFrom();
+		to = cE.getTo();
+		windowbpSize = wS;
+		medianMult = mM;
+		pw = p;
+		metrics = m;
+	}
+
+	/** Constructor for the intervals overlapping a target region, held in memory until written
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome
+	 * @param rS - region start
+	 * @param rE - region end
+	 * @param wS - window size (in bp)
+	 * @param mM - median multiple
+	 * @param p - tile output, held in memory
+	 * @param m - metrics of the chromosome, or null
+	 */
+	public static ChromTile ofRegion(File iF, ChromIndex.Entry cE, int rS, int rE, int wS, double mM, TileOutput p, RunMetrics.Chrom m) {
+		ChromTile tile = new ChromTile(iF, cE, -1, -1, wS, mM, p, m);
+		tile.region = new int[] {rS, rE};
+		return tile;
+	}
+
+	/**
+	 * Bins of a chromosome (indexes from its first bin) overlapping a region
+	 * @param e - index entry of the chromosome
+	 * @param s - region start
+	 * @param end - region end
+	 * @return first bin and the bin after the last, the same if none
+	 */
+	static long[] regionBins(ChromIndex.Entry e, int s, int end) {
+		long n = e.getBins();
+		int w = e.getIntervalSize();
+		long a = Math.max(0, Math.min(n, ((long) s - e.getFirstStart()) / w));
+		long b = Math.max(a, Math.min(n, ((long) end - e.getFirstStart() + w - 1) / w));
+		return new long[] {a, b};
+	}
+
+	/** Write the tile's output to the chromosome output it was held for */
+	public void writeOut() throws IOException {
+		tileOut.writeOut();
+	}
+
+	@Override
+	protected void compute() {
+		try {
+			if (region != null) {
+				long[] bins = regionBins(chromEntry, region[0], region[1]);
+				walkBins(bins[0], bins[1]);
+			}
+			else if (from == chromEntry.getFrom() && to == chromEntry.getTo()) {
+				processChrom();
+			}
+			else {
+				processTile();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Walk the window along the whole chromosome */
+	private void processChrom() throws IOException {
+		BinReader reader = new BinReader(inFile, from, to, chromEntry.getIntervalSize());
+		walkChrom(reader, windowbpSize, chromEntry.getIntervalSize(), medianMult, pw, metrics);
+		reader.close();
+	}
+
+	/**
+	 * Walk the window along a whole chromosome, as its bins are read
+	 * @param reader - reader of the chromosome's bins
+	 * @param wS - window size (in bp)
+	 * @param iS - interval size
+	 * @param mM - median multiple
+	 * @param pw - chromosome output
+	 * @param m - metrics of the chromosome, or null
+	 */
+	static void walkChrom(BinReader reader, int wS, int iS, double mM, TrackWriter pw, RunMetrics.Chrom m) throws IOException {
+		WindowWalk walk = WindowWalk.ofChrom(reader, wS, iS, mM);
+		if (walk != null) {
+			write(walk, pw, m);
+		}
+	}
+
+	/** Walk the window along the tile's positions */
+	private void processTile() throws IOException {
+		//-- Tile positions (in terms of bins) --
+		long n = chromEntry.getBins();
+		long a = lineIndexAt(from);
+		long b = to >= chromEntry.getTo() ? n : lineIndexAt(to);
+		walkBins(a, b);
+	}
+
+	/**
+	 * Walk the window along bins [a, b), starting far enough back to have the same window as the whole chromosome walk
+	 * The first line needed is found going back lines from the tile's first line, or from the region's linear index offset
+	 */
+	private void walkBins(long a, long b) throws IOException {
+		long n = chromEntry.getBins();
+		if (a >= b) {
+			return;
+		}
+
+		//-- Window position to start walking from, and the first line it needs --
+		int intervalSize = chromEntry.getIntervalSize();
+		int windowSize = windowbpSize / intervalSize;
+		long half = (windowSize - 1) / 2;
+		long lastMoving = n >= windowSize ? n - windowSize + half : 0; // window stops moving at end of chromosome
+		long p0 = Math.min(a, lastMoving);
+		long s0 = Math.max(p0 - half, 0);
+
+		//-- Go back to bin s0 (each line holds at least one bin) --
+		ByteSource source = MappedSource.open(inFile);
+		long base = region != null ? chromEntry.offsetAt(position(s0)) : from;
+		long back = region != null ? 0 : a - s0;
+		BinReader reader;
+		boolean more;
+		while (true) {
+			long offset = ChromIndex.lineStartBefore(source, base, back, chromEntry.getFrom());
+			reader = new BinReader(inFile, offset, chromEntry.getTo(), intervalSize);
+			more = reader.next();
+			if (!more || binIndexOf(reader.getStart()) <= s0 || offset == chromEntry.getFrom()) {
+				break;
+			}
+			reader.close(); // skipped lines in the way, go back further
+			back = 2 * back + 1;
+		}
+		source.close();
+
+		while (more && binIndexOf(reader.getStart()) < s0) {
+			more = reader.next();
+		}
+
+		int outTo = b == n ? Integer.MAX_VALUE : position(b);
+		IntWindow window = new IntWindow(chromEntry.getChrom(), windowbpSize, intervalSize, medianMult, position(p0), chromEntry.getFirstStart());
+		write(new WindowWalk(reader, more, window, position(a), outTo), pw, metrics);
+		reader.close();
+	}
+
+	/** Write the cMBF of each position of a walk, timing the stages of 1 in RunMetrics.SAMPLE positions if keeping metrics (m not null) */
+	private static void write(WindowWalk walk, TrackWriter pw, RunMetrics.Chrom m) throws IOException {
+		long n = 0;
+		long format = 0;
+		long start = System.nanoTime();
+		walk.setTiming(m != null);
+		while (walk.next()) {
+			boolean sample = m != null && n % RunMetrics.SAMPLE == 0;
+			long t1 = sample ? System.nanoTime() : 0;
+			try {
+				pw.write(walk.getChrom(), walk.getStart(), walk.getEnd(), walk.getValue());
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			if (sample) {
+				format += System.nanoTime() - t1;
+			}
+			n++;
+			if (m != null && n % PROGRESS_BINS == 0) {
+				m.addBins(PROGRESS_BINS);
+			}
+		}
+		if (m != null) {
+			m.addBins(n % PROGRESS_BINS);
+			m.addWalk(System.nanoTime() - start, walk.takeParseNanos(), walk.takeStepNanos(), format);
+		}
+	}
+
+	/** Bin index (from the chromosome's first bin) of the first data line at or after the given offset */
+	private long lineIndexAt(long offset) throws IOException {
+		BedReader reader = new BedReader(inFile, offset, chromEntry.getTo());
+		long index = reader.next() ? binIndexOf(reader.getStart()) : chromEntry.getBins();
+		reader.close();
+		return index;
+	}
+
+	private long binIndexOf(int start) {
+		return (start - (long) chromEntry.getFirstStart()) / chromEntry.getIntervalSize();
+	}
+
+	/** Start of the bin at the given index */
+	private int position(long index) {
+		return (int) (chromEntry.getFirstStart() + index * chromEntry.getIntervalSize());
+	}
+
+}
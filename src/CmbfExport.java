@@ -0,0 +1,52 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Exports a binary .cmbf track (see CmbfWriter) as a bedGraph .bed file
+ * The lines are the same as Calculator prints without the binary option
+ */
+public class CmbfExport {
+
+	/**
+	 * Main method
+	 *@param args - output .bed file, then .cmbf file to export
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Usage: CmbfExport [Output_File_Name.bed] [file.cmbf]");
+			System.exit(1);
+		}
+		if (!args[1].endsWith(".cmbf")) {
+			System.err.println("Incorrect filetype - must be a .cmbf: " + args[1]);
+			System.exit(1);
+		}
+
+		try {
+			export(new File(args[1]), new File(args[0]));
+		} catch (FileNotFoundException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Write each interval of a .cmbf file as a bedGraph line
+	 * @param in - .cmbf file
+	 * @param out - output .bed file
+	 * @throws IOException - if the .cmbf file cannot be read or is bad, or the output cannot be written
+	 */
+	public static void export(File in, File out) throws IOException {
+		CmbfReader reader = new CmbfReader(in);
+		BedGraphWriter pw = new BedGraphWriter(out);
+		while (reader.next()) {
+			pw.write(reader.getChrom(), reader.getStart(), reader.getEnd(), reader.getValue());
+		}
+		reader.close();
+		pw.close();
+	}
+
+}
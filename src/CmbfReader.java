@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the intervals of a binary .cmbf track (see CmbfWriter) through a memory-mapped FileChannel
+ * Values are read as the cMBF printed to 5 decimal places would be parsed back (units / 100000)
+ */
+class CmbfReader implements TrackReader {
+	/** Bytes of the file mapped at a time */
+	private static final int MAP_SIZE = 1 << 28;
+	/** Largest section header */
+	private static final int MAX_HEADER = CmbfWriter.HEADER_BYTES + 0xFFFF;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/** End of the byte range to read */
+	private long rangeEnd;
+
+	/** Mapped part of the file */
+	private MappedByteBuffer buf;
+	/** File offset of the start of buf */
+	private long bufOffset;
+	/** Position of the next header or value in buf */
+	private int pos;
+
+	//-- Current section --
+	private byte[] chromBytes;
+	private String chrom;
+	private int width;
+	/** Intervals of the section not yet read */
+	private int left;
+	private int nextStart;
+
+	//-- Current interval --
+	private int start;
+	private int end;
+	private double value;
+
+	/** Constructor for reading a whole file
+	 * @param f - .cmbf file
+	 */
+	public CmbfReader(File f) throws IOException {
+		this(f, 0, Long.MAX_VALUE);
+	}
+
+	/** Constructor for reading the sections in a byte range of a file
+	 * @param f - .cmbf file
+	 * @param from - offset of the first section to read
+	 * @param to - offset after the last section to read
+	 */
+	public CmbfReader(File f, long from, long to) throws IOException {
+		try {
+			raf = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		channel = raf.getChannel();
+		rangeEnd = Math.min(to, channel.size());
+		chromBytes = new byte[0];
+		left = 0;
+		map(Math.min(from, rangeEnd));
+	}
+
+	/** True if the file starts with a .cmbf section */
+	public static boolean isCmbf(File f) throws IOException {
+		RandomAccessFile r;
+		try {
+			r = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		byte[] magic = new byte[CmbfWriter.MAGIC.length];
+		boolean cmbf = r.length() >= magic.length;
+		if (cmbf) {
+			r.readFully(magic);
+			cmbf = Arrays.equals(magic, CmbfWriter.MAGIC);
+		}
+		r.close();
+		return cmbf;
+	}
+
+	@Override
+	public String getChrom() {
+		return chrom;
+	}
+
+	@Override
+	public int getStart() {
+		return start;
+	}
+
+	@Override
+	public int getEnd() {
+		return end;
+	}
+
+	@Override
+	public double getValue() {
+		return value;
+	}
+
+	/** File offset after the current interval */
+	public long getOffset() {
+		return bufOffset + pos;
+	}
+
+	/**
+	 * Move to the section at the given offset, then to its interval holding a position (or its first interval after it)
+	 * The mapped part is kept if it holds the section, and the intervals before the position are skipped without reading them
+	 * @param offset - offset of a section header, within the range being read
+	 * @param position - position to read from
+	 */
+	public void seek(long offset, int position) throws IOException {
+		offset = Math.min(offset, rangeEnd);
+		if (offset >= bufOffset && offset < bufOffset + buf.limit()) {
+			pos = (int) (offset - bufOffset);
+		}
+		else {
+			map(offset);
+		}
+		left = 0;
+		if (offset == rangeEnd) {
+			return;
+		}
+		readHeader();
+		if (position > nextStart) {
+			int k = (int) Math.min(left, ((long) position - nextStart) / width);
+			if (buf.limit() - pos < (long) CmbfWriter.VALUE_BYTES * k) {
+				map(bufOffset + pos + (long) CmbfWriter.VALUE_BYTES * k);
+			}
+			else {
+				pos += CmbfWriter.VALUE_BYTES * k;
+			}
+			left -= k;
+			nextStart += k * width;
+		}
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		while (left == 0) {
+			if (bufOffset + pos >= rangeEnd) {
+				return false;
+			}
+			readHeader();
+		}
+
+		if (buf.limit() - pos < CmbfWriter.VALUE_BYTES) {
+			map(bufOffset + pos);
+		}
+		int q = (buf.get(pos) & 0xFF) << 16 | (buf.get(pos + 1) & 0xFF) << 8 | (buf.get(pos + 2) & 0xFF);
+		pos += CmbfWriter.VALUE_BYTES;
+		left--;
+
+		start = nextStart;
+		end = start + width;
+		nextStart = end;
+		value = q / CmbfWriter.SCALE;
+		return true;
+	}
+
+	/** Read the header of the section at pos */
+	private void readHeader() throws IOException {
+		long offset = bufOffset + pos;
+		if (buf.limit() - pos < MAX_HEADER && bufOffset + buf.limit() < rangeEnd) {
+			map(offset);
+		}
+		int nameLength = buf.limit() - pos >= CmbfWriter.HEADER_BYTES ? buf.getShort(pos + CmbfWriter.MAGIC.length) & 0xFFFF : 0;
+		if (buf.limit() - pos < CmbfWriter.HEADER_BYTES + nameLength) {
+			throw new IOException("Truncated .cmbf section at offset " + offset);
+		}
+		for (int i = 0; i < CmbfWriter.MAGIC.length; i++) {
+			if (buf.get(pos + i) != CmbfWriter.MAGIC[i]) {
+				throw new IOException("Not a .cmbf section at offset " + offset);
+			}
+		}
+
+		int h = pos + CmbfWriter.MAGIC.length + 2;
+		setChrom(h, nameLength);
+		h += nameLength;
+		nextStart = buf.getInt(h);
+		width = buf.getInt(h + 4);
+		left = buf.getInt(h + 8);
+		pos = h + 12;
+		if (width <= 0 || left < 0 || bufOffset + pos + (long) CmbfWriter.VALUE_BYTES * left > rangeEnd) {
+			throw new IOException("Bad .cmbf section at offset " + offset);
+		}
+	}
+
+	/** Set the current chromosome, only making a new String when it changes */
+	private void setChrom(int h, int nameLength) {
+		boolean same = chrom != null && nameLength == chromBytes.length;
+		for (int i = 0; same && i < nameLength; i++) {
+			same = chromBytes[i] == buf.get(h + i);
+		}
+		if (same) {
+			return;
+		}
+		chromBytes = new byte[nameLength];
+		for (int i = 0; i < nameLength; i++) {
+			chromBytes[i] = buf.get(h + i);
+		}
+		chrom = new String(chromBytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/** Map the file from the given offset up to MAP_SIZE bytes or the range end */
+	private void map(long offset) throws IOException {
+		bufOffset = offset;
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_SIZE, rangeEnd - offset));
+		pos = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buf = null;
+		channel.close();
+		raf.close();
+	}
+
+}
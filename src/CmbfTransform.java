@@ -0,0 +1,84 @@
+/**
+ * Transforms the read counts of a block of bins into cMBFs (1 - exp(-Z^2/2), Z = RC/M), once their noise estimates are known
+ * A plain loop over primitive arrays, with no calls or checks between bins, so the JIT can unroll it and keep it in registers
+ * exp is Math.exp, or optionally a table of exp(-k/STEPS) corrected by a short series, within MAX_ERROR of Math.exp
+ * (far below the 5 decimals written, so the output is the same unless a cMBF is within MAX_ERROR of a rounding boundary)
+ */
+class CmbfTransform {
+	/** Table entries per unit of Z^2/2 */
+	private static final int STEPS = 64;
+	/** exp(-x) is taken as 0 from here, where 1 - exp(-x) is 1 in a double */
+	private static final double X_MAX = 40;
+	/** Largest relative error allowed of the tabulated exp */
+	public static final double MAX_ERROR = 1e-12;
+
+	private static boolean tabulated = false;
+	/** exp(-k / STEPS) */
+	private static double[] table;
+
+	/** Use the tabulated exp, checked against Math.exp over its range first, or Math.exp */
+	public static synchronized void setTabulated(boolean t) {
+		if (t && table == null) {
+			double[] tb = new double[(int) (X_MAX * STEPS) + 1];
+			for (int k = 0; k < tb.length; k++) {
+				tb[k] = Math.exp(-(double) k / STEPS);
+			}
+			table = tb;
+			double err = verify();
+			if (err > MAX_ERROR) {
+				System.err.println("Tabulated exp is off by " + err + " (relative), more than " + MAX_ERROR + ", use Math.exp.");
+				System.exit(1);
+			}
+		}
+		tabulated = t;
+	}
+
+	public static boolean isTabulated() {
+		return tabulated;
+	}
+
+	/**
+	 * cMBFs of a block of bins
+	 * @param counts - read counts used in calculations (see IntStats.readCountOf)
+	 * @param noise - noise estimates (median multiple times the window median), not 0
+	 * @param cmbfs - cMBFs calculated
+	 * @param n - number of bins
+	 */
+	public static void transform(double[] counts, double[] noise, double[] cmbfs, int n) {
+		if (tabulated) {
+			double[] tb = table;
+			for (int i = 0; i < n; i++) {
+				double z = counts[i] / noise[i];
+				cmbfs[i] = 1 - expNeg(tb, z * z / 2);
+			}
+		}
+		else {
+			for (int i = 0; i < n; i++) {
+				double z = counts[i] / noise[i];
+				cmbfs[i] = 1 - Math.exp(-(z * z) / 2);
+			}
+		}
+	}
+
+	/** exp(-x) for x >= 0: exp(-k / STEPS) from the table, times exp(-r) for the rest r < 1 / STEPS by its Taylor series */
+	private static double expNeg(double[] tb, double x) {
+		if (!(x < X_MAX)) {
+			return x >= X_MAX ? 0 : Double.NaN;
+		}
+		int k = (int) (x * STEPS);
+		double r = x - (double) k / STEPS;
+		return tb[k] * (1 - r * (1 - r / 2 * (1 - r / 3 * (1 - r / 4 * (1 - r / 5)))));
+	}
+
+	/** Largest relative error of the tabulated exp, at points across each step of the table */
+	private static double verify() {
+		double max = 0;
+		for (int i = 0; i < (int) X_MAX * STEPS * 16; i++) {
+			double x = (i + 0.5) / (STEPS * 16);
+			double e = Math.exp(-x);
+			max = Math.max(max, Math.abs(expNeg(table, x) - e) / e);
+		}
+		return max;
+	}
+
+}
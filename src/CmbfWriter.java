@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Writes a cMBF track in the binary .cmbf format, a sequence of sections each holding a run of adjacent intervals of one width:
+ * "cMBF", chromosome name length (2 bytes) and name, start, interval width and number of intervals (4 bytes each),
+ * then the cMBF of each interval in units of 0.00001 (3 bytes each, the value printed to 5 decimal places)
+ * Numbers are big-endian. A new section is started at each gap or change of width, and .cmbf files can be concatenated
+ */
+class CmbfWriter implements TrackWriter {
+	static final byte[] MAGIC = {'c', 'M', 'B', 'F'};
+	/** Bytes of a section header, not counting the chromosome name */
+	static final int HEADER_BYTES = MAGIC.length + 2 + 12;
+	static final int VALUE_BYTES = 3;
+	/** Units in a cMBF of 1 */
+	static final double SCALE = 100000;
+	/** Bytes held before writing to the file */
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	private FileOutputStream out;
+	/** File channel written to, null if held in memory */
+	private FileChannel channel;
+	/** File offset of the start of buf */
+	private long base;
+	private byte[] buf;
+	private int len;
+
+	//-- Current section --
+	private String chrom;
+	private byte[] chromBytes;
+	private int start;
+	private int width;
+	private int count;
+	/** Offset of the current section's count (file offset, or offset in buf if held in memory) */
+	private long countOffset;
+
+	/** Constructor for writing to a file
+	 * @param f - output file
+	 * @throws FileNotFoundException - if the file cannot be written
+	 */
+	public CmbfWriter(File f) throws FileNotFoundException {
+		out = new FileOutputStream(f);
+		channel = out.getChannel();
+		base = 0;
+		buf = new byte[BLOCK_SIZE + 1024];
+		len = 0;
+	}
+
+	/** Constructor for writing to part of a file shared with other writers (the channel is not closed)
+	 * @param fc - channel of the shared file
+	 * @param pos - position to start writing at
+	 */
+	public CmbfWriter(FileChannel fc, long pos) {
+		channel = fc;
+		base = pos;
+		buf = new byte[BLOCK_SIZE + 1024];
+		len = 0;
+	}
+
+	/** Constructor for holding the sections in memory */
+	public CmbfWriter() {
+		channel = null;
+		base = 0;
+		buf = new byte[1 << 16];
+		len = 0;
+	}
+
+	/**
+	 * Byte size of a section
+	 * @param cN - chromosome
+	 * @param n - number of intervals
+	 */
+	static long sectionSize(String cN, long n) {
+		return HEADER_BYTES + cN.getBytes(StandardCharsets.ISO_8859_1).length + VALUE_BYTES * n;
+	}
+
+	@Override
+	public void write(String cN, int s, int e, double v) throws IOException {
+		if (count == 0 || !cN.equals(chrom) || e - s != width || s != start + (long) count * width || count == Integer.MAX_VALUE) {
+			endSection();
+			startSection(cN, s, e - s);
+		}
+		int q = quantize(v);
+		ensure(VALUE_BYTES);
+		buf[len++] = (byte) (q >>> 16);
+		buf[len++] = (byte) (q >>> 8);
+		buf[len++] = (byte) q;
+		count++;
+		if (channel != null && len >= BLOCK_SIZE) {
+			flush();
+		}
+	}
+
+	/** cMBF in units of 0.00001, rounded as "%.5f" */
+	private static int quantize(double v) throws IOException {
+		if (!(v >= 0 && v <= 1)) {
+			throw new IOException("cMBF must be within 0-1, inclusive: " + v);
+		}
+		long q = BedGraphWriter.round5(v);
+		if (q < 0) {
+			q = Long.parseLong(String.format(Locale.ROOT, "%.5f", v).replace(".", ""));
+		}
+		return (int) q;
+	}
+
+	/** Write the sections held in memory to the given writer (see TileOutput) */
+	public void writeTo(CmbfWriter o) throws IOException {
+		endSection();
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		int p = 0;
+		while (p < len) {
+			int nameLength = bb.getShort(p + MAGIC.length) & 0xFFFF;
+			int h = p + MAGIC.length + 2;
+			String cN = sameName(h, nameLength) ? chrom : new String(buf, h, nameLength, StandardCharsets.ISO_8859_1);
+			h += nameLength;
+			int n = bb.getInt(h + 8);
+			o.append(cN, bb.getInt(h), bb.getInt(h + 4), n, buf, h + 12);
+			p = h + 12 + VALUE_BYTES * n;
+		}
+	}
+
+	/** Write each interval of the sections held in memory as a line (values to 5 decimal places) */
+	public void replayTo(TrackWriter w) throws IOException {
+		endSection();
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		int p = 0;
+		while (p < len) {
+			int nameLength = bb.getShort(p + MAGIC.length) & 0xFFFF;
+			int h = p + MAGIC.length + 2;
+			String cN = sameName(h, nameLength) ? chrom : new String(buf, h, nameLength, StandardCharsets.ISO_8859_1);
+			h += nameLength;
+			int s = bb.getInt(h);
+			int wd = bb.getInt(h + 4);
+			int n = bb.getInt(h + 8);
+			p = h + 12;
+			for (int i = 0; i < n; i++, p += VALUE_BYTES) {
+				int q = (buf[p] & 0xFF) << 16 | (buf[p + 1] & 0xFF) << 8 | (buf[p + 2] & 0xFF);
+				w.write(cN, s, s + wd, q / SCALE);
+				s += wd;
+			}
+		}
+	}
+
+	/** True if the name at buf[h] is the last chromosome written */
+	private boolean sameName(int h, int nameLength) {
+		if (chromBytes == null || nameLength != chromBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < nameLength; i++) {
+			if (buf[h + i] != chromBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Write n values of adjacent intervals, continuing the current section if they follow on from it */
+	private void append(String cN, int s, int w, int n, byte[] b, int off) throws IOException {
+		if (count == 0 || !cN.equals(chrom) || w != width || s != start + (long) count * width || (long) count + n > Integer.MAX_VALUE) {
+			endSection();
+			startSection(cN, s, w);
+		}
+		int bytes = VALUE_BYTES * n;
+		if (channel != null && len + bytes > BLOCK_SIZE) {
+			flush();
+		}
+		if (channel != null && bytes > BLOCK_SIZE) {
+			writeFully(ByteBuffer.wrap(b, off, bytes), base);
+			base += bytes;
+		}
+		else {
+			ensure(bytes);
+			System.arraycopy(b, off, buf, len, bytes);
+			len += bytes;
+		}
+		count += n;
+	}
+
+	/** Write the header of a new section, with its count filled in by endSection */
+	private void startSection(String cN, int s, int w) throws IOException {
+		if (cN != chrom) {
+			chromBytes = cN.getBytes(StandardCharsets.ISO_8859_1);
+			if (chromBytes.length > 0xFFFF) {
+				throw new IOException("Chromosome name too long: " + cN);
+			}
+		}
+		chrom = cN;
+		start = s;
+		width = w;
+		count = 0;
+
+		ensure(HEADER_BYTES + chromBytes.length);
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		bb.position(len);
+		bb.put(MAGIC);
+		bb.putShort((short) chromBytes.length);
+		bb.put(chromBytes);
+		bb.putInt(s);
+		bb.putInt(w);
+		countOffset = base + bb.position();
+		bb.putInt(0);
+		len = bb.position();
+	}
+
+	/** Fill in the count of the current section */
+	private void endSection() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		if (countOffset >= base) {
+			ByteBuffer.wrap(buf).putInt((int) (countOffset - base), count);
+		}
+		else { // header already written to the file
+			ByteBuffer bb = ByteBuffer.allocate(4);
+			bb.putInt(0, count);
+			writeFully(bb, countOffset);
+		}
+		count = 0;
+	}
+
+	/** Grow the buffer (held in memory) to fit n more bytes */
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] nb = new byte[Math.max(2 * buf.length, len + n)];
+			System.arraycopy(buf, 0, nb, 0, len);
+			buf = nb;
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		return base + len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (channel != null && len > 0) {
+			writeFully(ByteBuffer.wrap(buf, 0, len), base);
+			base += len;
+			len = 0;
+		}
+	}
+
+	private void writeFully(ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			pos += channel.write(bb, pos);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		endSection();
+		flush();
+		if (out != null) {
+			out.close();
+		}
+	}
+
+}
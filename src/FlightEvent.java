@@ -0,0 +1,95 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A custom JDK Flight Recorder event type, recorded when the JVM runs a recording (e.g. java -XX:StartFlightRecording=filename=run.jfr ...)
+ * The type is made at run time through jdk.jfr.EventFactory (Java 11 and later) by reflection, so the tool still builds and runs on Java 7 and 8,
+ * where events are not recorded
+ */
+class FlightEvent {
+	private static Method newEvent;
+	private static Method begin;
+	private static Method end;
+	private static Method commit;
+	private static Method set;
+
+	/** jdk.jfr.EventFactory of the event type, null if JFR is not available */
+	private Object factory = null;
+
+	/** Constructor, making the event type
+	 * @param name - event name, e.g. "ngs.ProcessChrom"
+	 * @param label - name shown by JDK Mission Control
+	 * @param fieldNames - names of the event's fields
+	 * @param fieldTypes - types of the event's fields (primitive or String)
+	 */
+	public FlightEvent(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+		try {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+			Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"NGS-Integrator"}));
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < fieldNames.length; i++) {
+				fields.add(field.newInstance(fieldTypes[i], fieldNames[i]));
+			}
+			factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+
+			synchronized (FlightEvent.class) {
+				newEvent = eventFactory.getMethod("newEvent");
+				begin = event.getMethod("begin");
+				end = event.getMethod("end");
+				commit = event.getMethod("commit");
+				set = event.getMethod("set", int.class, Object.class);
+			}
+		} catch (Exception e) {
+			factory = null; // no JFR (Java 7 or 8), or not allowed
+		}
+	}
+
+	/**
+	 * Start timing an event
+	 * @return the event, null if JFR is not available
+	 */
+	public Object begin() {
+		if (factory == null) {
+			return null;
+		}
+		try {
+			Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			return event;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * End an event and record it, if JFR is recording
+	 * @param event - event from begin, or null
+	 * @param values - the event's field values, in the order the fields were given
+	 */
+	public void commit(Object event, Object... values) {
+		if (event == null) {
+			return;
+		}
+		try {
+			end.invoke(event);
+			for (int i = 0; i < values.length; i++) {
+				set.invoke(event, i, values[i]);
+			}
+			commit.invoke(event);
+		} catch (Exception e) {
+			// not recorded
+		}
+	}
+
+}
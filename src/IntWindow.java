@@ -1,12 +1,13 @@
-import java.util.ArrayList;
-
 /** Moving window interval to calculate cMBFs from
  */
 public class IntWindow {
 	//-- Static parameters --
-	private static int intSize;
-	private static double medianMult;
+	/** Relative error of the approximate median (see MedianSketch), 0 for the exact median */
+	private static double medianError = 0;
 	
+	/** Interval size of the chromosome (each window its own, as chromosomes and tiles run at once) */
+	private int intSize;
+	private double medianMult;
 	/** Window size in terms of lines **/
 	private int windowSize;
 	//-- Window stats/parameters -- 
@@ -18,26 +19,66 @@ public class IntWindow {
 	private int relIndex;
 	private boolean endOfChrom;
 
-	/** ArrayList of IntStats in the window */
-	protected ArrayList<IntStats> winRA;
-
-	/** Constructor
+	//-- Intervals in the window, held in a circular buffer of windowSize slots --
+	private int[] starts;
+	private int[] ends;
+	/** Read counts as given in the file */
+	private int[] counts;
+	/** Slot of the first interval in the window */
+	private int head;
+	/** Number of intervals in the window */
+	private int size;
+	/** Running median of the read counts in the window */
+	private WindowMedian runMedian;
+
+	/** Constructor for a window starting at the chromosome's first position
 	 * @param wS - window size in terms of lines
 	 * @param iS - interval size
 	 */
 	public IntWindow(String cN, int wS, int iS, double mM, int p) {
+		this(cN, wS, iS, mM, p, p);
+	}
+	
+	/** Constructor for a window starting at any position of the chromosome
+	 * @param wS - window size (in bp)
+	 * @param iS - interval size
+	 * @param p - position the window is first centered on
+	 * @param aS - start of the chromosome's first interval
+	 */
+	public IntWindow(String cN, int wS, int iS, double mM, int p, int aS) {
 		chromNum = cN;
 		intSize = iS;
 		windowSize = wS / intSize;
-		winRA = new ArrayList<IntStats>(windowSize);
+		starts = new int[windowSize];
+		ends = new int[windowSize];
+		counts = new int[windowSize];
+		head = 0;
+		size = 0;
+		runMedian = medianError > 0 ? new MedianSketch(medianError) : new SlidingMedian(windowSize);
 		
 		medianMult = mM;
 		endOfChrom = false;
 		pos = p;
 		
-		absStart = p;
-		start = p;
-		relIndex = 0;
+		absStart = aS;
+		calcStartEnd();
+	}
+	
+	/** Use an approximate median in fixed memory (see MedianSketch), or the exact median
+	 * @param e - relative error of medians of MedianSketch.EXACT reads or more, 0 for the exact median
+	 */
+	public static void setMedianError(double e) {
+		medianError = e;
+	}
+	
+	/** Bytes held per bin of the window (its intervals, and the exact median's heaps) */
+	public static long bytesPerBin() {
+		return medianError > 0 ? 12 : 28;
+	}
+	
+	/** Bytes held by a window whatever its size (the approximate median's buckets) */
+	public static long fixedBytes() {
+		return medianError > 0 ? MedianSketch.bytes(medianError) : 0;
 	}
 	
 	//-- Get window statistics -- 
@@ -45,24 +86,30 @@ public class IntWindow {
 		return chromNum;
 	}
 	
+	/** Position the window is centered on */
+	public int getPos() {
+		return pos;
+	}
+	
 	public int getIndexStart() {
-		return winRA.get(relIndex).getStart();
+		return starts[slot(relIndex)];
 	}
 
 	public int getIndexEnd() {
-		return winRA.get(relIndex).getEnd();
+		return ends[slot(relIndex)];
 	}
 
 	public double getIndexReadCount() {
-		return winRA.get(relIndex).getReadCount();
+		return IntStats.readCountOf(counts[slot(relIndex)]);
 	}
 
-	public double getIndexcMBF() {
-		return winRA.get(relIndex).getcMBF();
+	public int getLastStartIndex() {
+		return starts[slot(size - 1)];
 	}
 	
-	public int getLastStartIndex() {
-		return winRA.get(winRA.size() - 1).getStart();
+	/** Buffer slot of the i-th interval in the window */
+	private int slot(int i) {
+		return (head + i) % starts.length;
 	}
 	
 	/** Set end of chromosome */
@@ -93,8 +140,8 @@ public class IntWindow {
 	
 	/** Used for when window is not filled but reached end of file - assumingly 0 - [last line's start] */
 	public int setSmallerWindowSize() {
-		windowSize = winRA.size();
-		end = winRA.get(winRA.size() - 1).getEnd();
+		windowSize = size;
+		end = ends[slot(size - 1)];
 		return windowSize;
 	}
 
@@ -103,19 +150,29 @@ public class IntWindow {
 	 * @return
 	 */
 	public int toFill() {
-		return windowSize - winRA.size();		
+		return windowSize - size;
 	}
 
 	public boolean full() {
-		return winRA.size() == windowSize;
+		return size == windowSize;
 	}
 
-	/** Insert an IntStats object to window */
-	public boolean insert(IntStats is) {
-		if (winRA.size() >= windowSize) { //full
+	/** Insert an interval at the end of the window
+	 * @param s - interval start
+	 * @param e - interval end
+	 * @param rc - read count as given in the file
+	 */
+	public void insert(int s, int e, int rc) {
+		if (size >= windowSize) { //full
 			throw new IndexOutOfBoundsException();
 		}
-		return winRA.add(is);
+		IntStats.checkCount(rc);
+		int i = slot(size);
+		starts[i] = s;
+		ends[i] = e;
+		counts[i] = rc;
+		size++;
+		runMedian.add(rc);
 	}
 
 	//Available for changes in calculation
@@ -124,55 +181,58 @@ public class IntWindow {
 		double sum = 0;
 		int count = 0;
 		for (int i = 0; i < windowSize; i++) {
-			sum += winRA.get(i).getReadCount();
+			sum += IntStats.readCountOf(counts[slot(i)]);
 			count++;
 		}
 		return sum / count;
 	}
 
+	/** Median read count of the window (average of the middle two entries if the window is even) */
 	private double calcMedian() {
-		@SuppressWarnings("unchecked")
-		ArrayList<IntStats> sortedRA = (ArrayList<IntStats>) winRA.clone();
-		sortedRA.sort(new ISWGSepReadCountSorter());
-		int middle = 0;
-		if (windowSize % 2 == 0) { //if even, average middle two entries
-			middle = windowSize/2 - 1;
-			return (sortedRA.get(middle).getReadCount() + sortedRA.get(middle + 1).getReadCount()) / 2;
+		int low = runMedian.lowMiddle();
+		int high = windowSize % 2 == 0 ? runMedian.highMiddle() : low;
+		if (medianError > 0 && high >= MedianSketch.EXACT) { // read from a bucket of large counts
+			MedianSketch.addApproximated();
 		}
-		else {
-			middle = windowSize/2;
-			return sortedRA.get(middle).getReadCount(); //else odd, return middle entry
+		double lowMiddle = IntStats.readCountOf(low);
+		if (windowSize % 2 == 0) { //if even, average middle two entries
+			return (lowMiddle + IntStats.readCountOf(high)) / 2;
 		}
-		
+		return lowMiddle;
 	}
 
-	/** Calculate the cMBF (1 - exp(-Z^2/2), Z = RC/M ) for the position using the median of the window */
-	public double calccMBF() throws Exception{ //currently uses mean
+	/** Noise estimate (M) for the position, the median of the window times the median multiple
+	 * The position's cMBF is then calculated with those of the positions around it (see CmbfTransform)
+	 */
+	public double calcNoise() throws Exception {
 		double noiseEst = medianMult * calcMedian();
 		if (noiseEst == 0) {
 			throw new Exception("Noise level estimated to be 0: \n"
 					+ chromNum + "\t" + start + "\t" + end + "\t" + pos);
 		}
-		
-		double Z = getIndexReadCount() / noiseEst;
-		double cmbf = 1 - Math.exp(-1 * (Z*Z) / 2);
-		winRA.get(relIndex).setcMBF(cmbf);
-		return cmbf;
+		return noiseEst;
 	}
 
 	/** Increment center and move it along the chromosome */
 	public void incrCenter() {
 		pos += intSize;
 		calcStartEnd();
-		if (!endOfChrom && winRA.get(0).getStart() < start) { //remove first element in RA if moving out of range and haven't reached end of file
-			winRA.remove(0);
+		if (!endOfChrom && starts[head] < start) { //remove first interval if moving out of range and haven't reached end of file
+			runMedian.evict(counts[head]);
+			head = slot(1);
+			size--;
 		}
 	}
 
 	//Used for debugging
 	@Override
 	public String toString() {
-		return "windowSize:" + windowSize + ", pos:" + pos + ", start:" + start + ", end:" + end + ", relIndex" + relIndex + "\nwinRA:" + winRA.toString();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			int j = slot(i);
+			sb.append("[start:" + starts[j] + ", end:" + ends[j] + ", readCount:" + IntStats.readCountOf(counts[j]) + "]");
+		}
+		return "windowSize:" + windowSize + ", pos:" + pos + ", start:" + start + ", end:" + end + ", relIndex" + relIndex + "\nwindow:" + sb.toString();
 	}
 
 }
@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Integrates a chromosome's lines of the bedGraph files given by Integrator
+ * Each file's lines are read straight from its part of the file (see ChromIndex), bedGraph or .cmbf, and swept along together:
+ * the output is split at every file's interval starts and ends, so files may have different intervals or gaps
+ */
+public class IntegrateChrom implements Callable<File> {
+	/** cMBF of a file with no line over a region, null if every covered region must be in all files */
+	private static Double missingValue = null;
+	/** Merge adjacent regions with the same product into one line (see RunLengthWriter) */
+	private static boolean runLength = false;
+	/** Write the output compressed as BGZF blocks, with no end block (see BgzfOutputStream) */
+	private static boolean compressed = false;
+
+	private ChromIndex[] indexes;
+	/** Index entry of the chromosome in each file, null if the file does not have it */
+	private ChromIndex.Entry[] chromEntries;
+	private String chrom;
+	private File outFile;
+	private TrackWriter pw;
+
+	//-- Current line of each file --
+	private TrackReader[] readers;
+	private boolean[] more;
+	private int[] starts;
+	private int[] ends;
+	private double[] values;
+
+	/** Constructor for setting up integration
+	 * @param idx - index of each file to integrate
+	 * @param cE - index entry of the chromosome in each file (null if not in the file)
+	 * @param c - chromosome
+	 * @param oF - output file for the chromosome
+	 * @param p - output writer, or null to print the products in full to oF
+	 */
+	public IntegrateChrom(ChromIndex[] idx, ChromIndex.Entry[] cE, String c, File oF, TrackWriter p) {
+		indexes = idx;
+		chromEntries = cE;
+		chrom = c;
+		outFile = oF;
+		pw = p;
+	}
+
+	/** Set cMBF of a file with no line over a region
+	 * @param mV
+	 */
+	public static void setMissingValue(double mV) {
+		missingValue = mV;
+	}
+
+	public static boolean hasMissingValue() {
+		return missingValue != null;
+	}
+
+	/** Set run-length merged output
+	 * @param rL
+	 */
+	public static void setRunLength(boolean rL) {
+		runLength = rL;
+	}
+
+	/** Set BGZF compressed output
+	 * @param c
+	 */
+	public static void setCompressed(boolean c) {
+		compressed = c;
+	}
+
+	protected static boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Multiply the cMBFs of each region across the files
+	 * Regions are between consecutive interval starts/ends of all the files, and only those covered by a file are printed
+	 * @return Chromosome output file
+	 */
+	@Override
+	public File call() throws IOException {
+		int n = indexes.length;
+		readers = new TrackReader[n];
+		more = new boolean[n];
+		starts = new int[n];
+		ends = new int[n];
+		values = new double[n];
+		if (pw == null && compressed) {
+			pw = new BedGraphWriter(new BgzfOutputStream(new FileOutputStream(outFile), false), true);
+		}
+		else if (pw == null) {
+			pw = new BedGraphWriter(outFile, true);
+		}
+		if (runLength) {
+			pw = new RunLengthWriter(pw, false);
+		}
+		for (int i = 0; i < n; i++) {
+			if (chromEntries[i] != null) {
+				readers[i] = open(i, indexes[i], chromEntries[i]);
+				ends[i] = Integer.MIN_VALUE;
+				advance(i);
+			}
+		}
+
+		long pos = Long.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			if (more[i]) {
+				pos = Math.min(pos, starts[i]);
+			}
+		}
+
+		while (true) {
+			//-- Next start/end after pos, and whether any file covers pos --
+			long next = Long.MAX_VALUE;
+			boolean covered = false;
+			for (int i = 0; i < n; i++) {
+				if (!more[i]) {
+					continue;
+				}
+				if (starts[i] > pos) {
+					next = Math.min(next, starts[i]);
+				}
+				else {
+					next = Math.min(next, ends[i]);
+					covered = true;
+				}
+			}
+			if (next == Long.MAX_VALUE) { // all files done
+				break;
+			}
+
+			if (covered) {
+				double product = 1;
+				for (int i = 0; i < n; i++) {
+					if (more[i] && starts[i] <= pos) {
+						product *= values[i];
+					}
+					else if (missingValue != null) {
+						product *= missingValue;
+					}
+					else {
+						System.err.println("File regions do not match: " + chrom + "\t" + pos + "\t" + next + " is missing, from " + indexes[i].getFile().getPath());
+						System.exit(1);
+					}
+				}
+				pw.write(chrom, (int) pos, (int) next, product);
+			}
+
+			pos = next;
+			for (int i = 0; i < n; i++) {
+				if (more[i] && ends[i] <= pos) {
+					advance(i);
+				}
+			}
+		}
+
+		for (TrackReader reader : readers) {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+		pw.close();
+		return outFile;
+	}
+
+	/**
+	 * Open a file's lines of the chromosome
+	 * @param i - number of the file
+	 * @param index - index of the file
+	 * @param entry - index entry of the chromosome
+	 * @return reader of the lines
+	 */
+	protected TrackReader open(int i, ChromIndex index, ChromIndex.Entry entry) throws IOException {
+		if (index.isBinary()) {
+			return new CmbfReader(index.getFile(), entry.getFrom(), entry.getTo());
+		}
+		return new BedReader(index.getFile(), entry.getFrom(), entry.getTo(), true);
+	}
+
+	/** Read the next line of a file, checking it is within 0-1 and after the last line */
+	private void advance(int i) throws IOException {
+		TrackReader reader = readers[i];
+		more[i] = reader.next();
+		if (!more[i]) {
+			return;
+		}
+		if (reader.getStart() < ends[i] || reader.getEnd() <= reader.getStart()) {
+			System.err.println("Lines must be sorted and not overlap: " + line(reader) + ", from " + indexes[i].getFile().getPath());
+			System.exit(1);
+		}
+		if (reader.getValue() < 0 || reader.getValue() > 1) {
+			System.err.println("cMBF must be within 0-1, inclusive: " + line(reader) + ", from " + indexes[i].getFile().getPath());
+			System.exit(1);
+		}
+		starts[i] = reader.getStart();
+		ends[i] = reader.getEnd();
+		values[i] = reader.getValue();
+	}
+
+	/** Current line of a reader, for messages */
+	private static String line(TrackReader reader) {
+		return reader.getChrom() + "\t" + reader.getStart() + "\t" + reader.getEnd() + "\t" + reader.getValue();
+	}
+
+}
@@ -1,10 +1,26 @@
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 /**
  * Integrates the given bedGraph files
@@ -12,29 +28,229 @@ import java.util.Scanner;
  */
 public class Integrator {
 	
+	/** Flight Recorder event of the integration */
+	private static final FlightEvent EVENT = new FlightEvent("ngs.Integration", "Integration",
+			new String[] {"files", "output"}, new Class<?>[] {int.class, String.class});
+	
 	private static ArrayList<String> filenames;
 	private static String outfile;
+	/** Write a bigWig file instead of bedGraph */
+	private static boolean bigWig;
+	/** Write the output compressed as BGZF (output name ending .gz) */
+	private static boolean compressed;
+	/** Index the output for looking up positions (see TrackQuery) */
+	private static boolean indexOutput;
+	/** Inputs are coverage files, their cMBFs calculated as they are integrated */
+	private static boolean calculate;
+	/** Window size for calculating cMBFs (in bp) */
+	private static int windowSize;
+	/** Bin size of the coverage files, 0 to take each chromosome's from its line starts */
+	private static int intervalSize;
+	/** Also write each coverage file's cMBFs */
+	private static boolean keepTracks;
+	/** Relative error of the approximate median for -w, 0 for the exact median */
+	private static double medianError = 0;
+	/** Number of threads */
+	private static int nThreads;
 	
 	/**
 	 * Main method
-	 *@param args - bedGraph files to integrate
+	 *@param args - options, then output file and bedGraph files to integrate
 	 */
 	public static void main(String[] args) throws Exception{
+		parseOptions(args);
+		
+		Object event = EVENT.begin();
+		integration();
+		EVENT.commit(event, filenames.size(), outfile);
+		if (medianError > 0) {
+			Calculator.printMedianError(medianError);
+		}
+	}
+	
+	/**
+	 * Parse commandline options using CLI
+	 * @param args - commandline arguments from main method
+	 */
+	public static void parseOptions(String[] args) {
+		//-- Set up CLI option parsing --
+		Options options = new Options();
+		
+		Option defVal = new Option("d", "defaultValue", true, "[opt] cMBF used for a file with no line over a region, regions must match if not given");
+		defVal.setRequired(false);
+		options.addOption(defVal);
+		
+		Option bw = new Option("g", "bigWig", false, "[opt] write the output as a bigWig file, with zoom levels");
+		bw.setRequired(false);
+		options.addOption(bw);
+		
+		Option rl = new Option("r", "runLength", false, "[opt] merge adjacent regions with the same product into one line");
+		rl.setRequired(false);
+		options.addOption(rl);
+		
+		Option winSize = new Option("w", "windowSize", true, "[opt] take coverage files, calculating their cMBFs with this window size (see Calculator) as they are integrated, in one pass");
+		winSize.setRequired(false);
+		options.addOption(winSize);
+		
+		Option medMult = new Option("m", "medMult", true, "[opt] median multiple for -w, cannot be 0 (default 1)");
+		medMult.setRequired(false);
+		options.addOption(medMult);
+		
+		Option dZ = new Option("z", "defaultZero", true, "[opt] default number to replace zero for -w (default 0.5)");
+		dZ.setRequired(false);
+		options.addOption(dZ);
+		
+		Option iSize = new Option("n", "intervalSize", true, "[opt] bin size of the coverage files for -w, taken from the line starts if not given");
+		iSize.setRequired(false);
+		options.addOption(iSize);
+		
+		Option keep = new Option("k", "keepTracks", false, "[opt] with -w, also write each coverage file's cMBFs to <file base>_cMBF.bed");
+		keep.setRequired(false);
+		options.addOption(keep);
+		
+		Option approx = new Option("a", "approxMedian", true, "[opt] approximate median for -w, within this relative error for medians of 1024 reads or more (see Calculator)");
+		approx.setRequired(false);
+		options.addOption(approx);
+		
+		Option tabExp = new Option("x", "tabulatedExp", false, "[opt] calculate the cMBFs for -w with a tabulated exp (see Calculator)");
+		tabExp.setRequired(false);
+		options.addOption(tabExp);
+		
+		Option threads = new Option("t", "threads", true, "[opt] number of threads, default: number of processors");
+		threads.setRequired(false);
+		options.addOption(threads);
+		
+		Option indexOut = new Option("I", "indexOutput", false, "[opt] index the output in <output>.cidx, for looking up positions with TrackQuery");
+		indexOut.setRequired(false);
+		options.addOption(indexOut);
+		
+		Option help = new Option("h", "help", false, "");
+		options.addOption(help);
+		
+		//-- Parse options --
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+		CommandLine cmd = null;
+		
+		String syntax = "Integrator [options] output.bed|output.bed.gz|output.bw file1.bed file2.bed.gz file3.cmbf ...\n"
+				+ "       Integrator -w windowSize [options] output.bed|output.bed.gz|output.bw coverage1.bed coverage2.bed.gz ...";
+		String header = "Integrate cMBF bedGraph files by multiplying the cMBF at each position \n\n";
+		String footer = "\nPlease see the GitHub at https://github.com/ESBL/NGS-IT for more information.\n"
+				+ "Questions or issues can be directed to ESBL at https://esbl.nhlbi.nih.gov/contact.html";
+		
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			formatter.printHelp(syntax, header, options, footer, false);
+			
+			System.exit(1);
+		}
+		
+		if (cmd.hasOption("h")) {
+			formatter.printHelp(syntax, header, options, footer, false);
+		}
+		
+		if (cmd.hasOption("d")) {
+			double dv = Double.parseDouble(cmd.getOptionValue("d"));
+			if (dv < 0 || dv > 1) {
+				System.err.println("Default value must be within 0-1, inclusive.");
+				System.exit(1);
+			}
+			IntegrateChrom.setMissingValue(dv);
+		}
+		
+		nThreads = Runtime.getRuntime().availableProcessors();
+		if (cmd.hasOption("t")) {
+			nThreads = Integer.parseInt(cmd.getOptionValue("t"));
+			if (nThreads <= 0) {
+				System.err.println("Number of threads must be greater than 0.");
+				System.exit(1);
+			}
+		}
+		
+		bigWig = cmd.hasOption("g");
+		indexOutput = cmd.hasOption("I");
+		if (indexOutput && bigWig) {
+			System.err.println("bigWig output holds its own index, -I cannot be given with -g.");
+			System.exit(1);
+		}
+		IntegrateChrom.setRunLength(cmd.hasOption("r"));
+		
+		//-- Calculation of coverage files' cMBFs --
+		calculate = cmd.hasOption("w");
+		if (calculate) {
+			int windowbpSize = Integer.parseInt(cmd.getOptionValue("w"));
+			double medianMult = 1;
+			double defZero = 0.5;
+			if (cmd.hasOption("m")) {
+				medianMult = Double.parseDouble(cmd.getOptionValue("m"));
+				if (medianMult <= 0) {
+					System.err.println("Median multiple must be greater than 0.");
+					System.exit(1);
+				}
+			}
+			if (cmd.hasOption("z")) {
+				defZero = Double.parseDouble(cmd.getOptionValue("z"));
+				if (defZero <= 0 || defZero >= 1) {
+					System.err.println("Default zero must be 0 < dZ < 1.");
+					System.exit(1);
+				}
+			}
+			if (cmd.hasOption("n")) {
+				intervalSize = Integer.parseInt(cmd.getOptionValue("n"));
+				if (intervalSize <= 0) {
+					System.err.println("Interval size must be greater than 0.");
+					System.exit(1);
+				}
+			}
+			keepTracks = cmd.hasOption("k");
+			if (cmd.hasOption("a")) {
+				medianError = Double.parseDouble(cmd.getOptionValue("a"));
+				if (medianError < MedianSketch.MIN_ERROR || medianError >= 1) {
+					System.err.println("Relative error of the approximate median must be 0.0001 <= e < 1.");
+					System.exit(1);
+				}
+				IntWindow.setMedianError(medianError);
+			}
+			CmbfTransform.setTabulated(cmd.hasOption("x"));
+			IntStats.setdefZero(defZero);
+			CalcIntegrateChrom.setWindow(windowbpSize, medianMult);
+			windowSize = windowbpSize;
+		}
+		else if (cmd.hasOption("m") || cmd.hasOption("z") || cmd.hasOption("n") || cmd.hasOption("k") || cmd.hasOption("a")
+				|| cmd.hasOption("x")) {
+			System.err.println("-m, -z, -n, -k, -a and -x are only used with -w (calculating the cMBFs of coverage files).");
+			System.exit(1);
+		}
+		
+		//-- Output and input files --
 		filenames = new ArrayList<String>();
+		List<String> fileArgs = cmd.getArgList();
 		
-		if (args.length < 3) {
+		if (fileArgs.size() < 3) {
 			System.err.println("Must include files to integrate");
 			System.exit(1);
 		}
 		
-		outfile = args[0];
+		outfile = fileArgs.get(0);
+		compressed = outfile.endsWith(".gz");
+		if (compressed && bigWig) {
+			System.err.println("bigWig output cannot be compressed.");
+			System.exit(1);
+		}
+		IntegrateChrom.setCompressed(compressed);
 		
-		for (int i = 1; i < args.length; i++) {
-			String s = args[i];
+		for (int i = 1; i < fileArgs.size(); i++) {
+			String s = fileArgs.get(i);
 			/*if (!s.endsWith(".bedGraph")) {
 				System.err.println("Incorrect filetypes - must be a .bedGraph: " + s);*/
-			if (!s.endsWith(".bed")) {
-				System.err.println("Incorrect filetypes - must be a .bed: " + s);
+			if (!s.endsWith(".bed") && !s.endsWith(".bed.gz") && !s.endsWith(".cmbf")) {
+				System.err.println("Incorrect filetypes - must be a .bed, .bed.gz or .cmbf: " + s);
+				System.exit(1);
+			}
+			if (calculate && s.endsWith(".cmbf")) {
+				System.err.println("Incorrect filetypes - coverage files must be a .bed or .bed.gz: " + s);
 				System.exit(1);
 			}
 			
@@ -45,102 +261,257 @@ public class Integrator {
 			System.err.println("No files to integrate");
 			System.exit(1);
 		}
-		
-		integration();
 	}
 	
 	/**
 	 * Integrate the output bedGraph files
-	 * @throws IOException 
+	 * Each file is indexed by chromosome (see ChromIndex), then chromosomes are integrated in parallel into parts of the output
+	 * Files may have different intervals and gaps, each chromosome is swept along all files at once (see IntegrateChrom)
 	 */
 	public static void integration() {
+		int n = filenames.size();
+		PhaseTimer timer = new PhaseTimer();
+
+		//-- Index chromosomes of each file --
+		ChromIndex[] indexes = new ChromIndex[n];
+		for (int i = 0; i < n; i++) {
+			try {
+				File f = new File(filenames.get(i));
+				indexes[i] = ChromIndex.build(BgzfSource.readable(f, f.getAbsoluteFile().getParentFile()), nThreads, !calculate);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			if (calculate) {
+				checkCoverage(indexes[i], filenames.get(i));
+			}
+		}
+		timer.end("Indexed");
 
-		ArrayList<Scanner> scannerList = new ArrayList<Scanner>();
-		PrintWriter pw = null;
+		//-- Chromosomes of all files, in the order first given --
+		LinkedHashMap<String, ChromIndex.Entry[]> chroms = new LinkedHashMap<String, ChromIndex.Entry[]>();
+		for (int i = 0; i < n; i++) {
+			for (ChromIndex.Entry e : indexes[i].getEntries()) {
+				ChromIndex.Entry[] chromEntries = chroms.get(e.getChrom());
+				if (chromEntries == null) {
+					chromEntries = new ChromIndex.Entry[n];
+					chroms.put(e.getChrom(), chromEntries);
+				}
+				chromEntries[i] = e;
+			}
+		}
 		
+		//-- Check that every file has each chromosome, unless missing regions take the default value --
+		if (!IntegrateChrom.hasMissingValue()) {
+			for (String chrom : chroms.keySet()) {
+				ChromIndex.Entry[] chromEntries = chroms.get(chrom);
+				for (int i = 0; i < n; i++) {
+					if (chromEntries[i] == null) {
+						System.err.println("File chromosomes do not match: no " + chrom + ", from " + filenames.get(i));
+						System.exit(1);
+					}
+				}
+			}
+		}
+
+		//-- bigWig zoom levels, from the smallest interval and longest chromosome --
+		BigWigWriter bigWigOut = null;
+		if (bigWig) {
+			int intervalSize = Integer.MAX_VALUE;
+			long maxSpan = 0;
+			for (ChromIndex index : indexes) {
+				for (ChromIndex.Entry e : index.getEntries()) {
+					intervalSize = Math.min(intervalSize, e.getIntervalSize());
+					maxSpan = Math.max(maxSpan, (long) e.getLastEnd() - e.getFirstStart());
+				}
+			}
+			bigWigOut = new BigWigWriter(new File(outfile), BigWigWriter.zoomReductions(intervalSize, maxSpan), false);
+		}
+
+		//-- Parallel integrate chromosomes, longest first (outputs are still in the given order) --
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		ArrayList<IntegrateChrom> workers = new ArrayList<IntegrateChrom>();
+		int c = 0;
+		for (String chrom : chroms.keySet()) {
+			IntegrateChrom worker;
+			File[] trackFiles = keepTracks ? trackParts(c) : null;
+			if (calculate && bigWigOut != null) {
+				worker = new CalcIntegrateChrom(indexes, chroms.get(chrom), chrom, new File(outfile), bigWigOut.addChrom(chrom), trackFiles);
+			}
+			else if (calculate) {
+				worker = new CalcIntegrateChrom(indexes, chroms.get(chrom), chrom, new File(outfile + "." + c + ".part"), null, trackFiles);
+			}
+			else if (bigWigOut != null) {
+				worker = new IntegrateChrom(indexes, chroms.get(chrom), chrom, new File(outfile), bigWigOut.addChrom(chrom));
+			}
+			else {
+				worker = new IntegrateChrom(indexes, chroms.get(chrom), chrom, new File(outfile + "." + c + ".part"), null);
+			}
+			c++;
+			workers.add(worker);
+		}
+		ArrayList<Future<File>> futureList = new ArrayList<Future<File>>();
+		for (int i = 0; i < workers.size(); i++) {
+			futureList.add(null);
+		}
+		for (int i : longestFirst(new ArrayList<ChromIndex.Entry[]>(chroms.values()))) {
+			futureList.set(i, executor.submit(workers.get(i)));
+		}
+
+		//-- bigWig: wait for every chromosome, then assemble the file --
+		if (bigWigOut != null) {
+			try {
+				for (Future<File> future : futureList) {
+					future.get();
+				}
+				bigWigOut.write();
+				if (keepTracks) {
+					writeTracks(chroms.size());
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(1);
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			executor.shutdown();
+			timer.end(calculate ? "Calculated and integrated" : "Integrated");
+			return;
+		}
+
+		//-- Concatenate chromosome parts in order, as each is completed --
+		FileOutputStream out = null;
 		try {
-			pw = new PrintWriter(new File(outfile));
+			out = new FileOutputStream(outfile);
 		} catch (FileNotFoundException e) {
 			System.err.println("Unable to print to file.");
 			System.exit(1);
 		}
-		
-		for (String filename : filenames) {
+		try {
+			FileChannel outChannel = out.getChannel();
+			for (Future<File> future : futureList) {
+				appendPart(future.get(), outChannel);
+			}
+			if (compressed) {
+				out.write(BgzfOutputStream.EOF_BLOCK);
+			}
+			out.close();
+			if (keepTracks) {
+				writeTracks(chroms.size());
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		executor.shutdown();
+		timer.end(calculate ? "Calculated and integrated" : "Integrated");
+		if (indexOutput) {
 			try {
-				Scanner sc = new Scanner(new File(filename));
-				scannerList.add(sc);
-				/*sc.nextLine(); //ignore header*/
-			} catch (FileNotFoundException e) {
-				System.err.println("File not found: " + filename);
-				System.exit(1);
+				ChromIndex.open(new File(outfile), nThreads, true);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
 			}
+			timer.end("Indexed output");
 		}
-		
-		boolean endReached = false;
-		
-		/*pw.println("track type=bedGraph name=\"" + outfile.substring(0, outfile.lastIndexOf(".bedGraph")) + "\"");*/
-		
-		while(scannerList.get(0).hasNextLine() && endReached == false) {
-			String chr = "";
-			int start = -1;
-			int end = -1;
-			
-			double product = 1;
-			String[] raComp = null;
-			
-			for (int i = 0; i < scannerList.size() && !endReached; i++) {
-				Scanner sc = scannerList.get(i);
-				
-				if (!sc.hasNextLine()) {
-					endReached = true;
-				}
-				else { //process file
-					
-					String line = sc.nextLine();
-					String[] ra = line.split("\\s");
-						
-					//check that the line chr/start/end match
-					if (raComp == null) {
-						raComp = Arrays.copyOf(ra, ra.length);
-					}
-					else if (!lineMatchingRegion(raComp, ra)) {
-						System.err.println("File regions do not match: " + line + ", from " + filenames.get(i));
-						System.exit(1);
-					}
-					try {
-						chr = ra[0];
-						start = Integer.parseInt(ra[1]);
-						end = Integer.parseInt(ra[2]);
-						double cMBF = Double.parseDouble(ra[3]);
-						if (cMBF < 0 || cMBF > 1) {
-							System.err.println("cMBF must be within 0-1, inclusive: " + line);
-							System.exit(1);
-						}
-						product *= cMBF;
-					} catch (NumberFormatException e) {
-						System.err.println("Line cannot be parsed: " + line);
-						System.exit(1);
-					}
+	}
+	
+	/**
+	 * Order to integrate chromosomes in, longest first (by input bytes over all files), so the longest do not start last and hold up the end of the run
+	 * @param chromEntries - index entries of each chromosome in each file (null if not in the file), in the order given
+	 * @return indexes of the chromosomes
+	 */
+	private static ArrayList<Integer> longestFirst(ArrayList<ChromIndex.Entry[]> chromEntries) {
+		final long[] bytes = new long[chromEntries.size()];
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < chromEntries.size(); i++) {
+			for (ChromIndex.Entry e : chromEntries.get(i)) {
+				if (e != null) {
+					bytes[i] += e.getTo() - e.getFrom();
 				}
 			}
-			pw.println(chr + "\t" + start + "\t" + end + "\t" + product);
+			order.add(i);
 		}
-
-		for (Scanner sc: scannerList) {
-			sc.close();
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(bytes[b], bytes[a]);
+			}
+		});
+		return order;
+	}
+	
+	/** Check a coverage file's chromosomes can be calculated: lines sorted, and on bins that divide the window size */
+	private static void checkCoverage(ChromIndex index, String name) {
+		for (ChromIndex.Entry e : index.getEntries()) {
+			if (intervalSize > 0 && !e.setIntervalSize(intervalSize)) {
+				System.err.println("Lines of " + e.getChrom() + " do not start on bins of the interval size " + intervalSize + ", from " + name);
+				System.exit(1);
+			}
+			if (!e.isOrdered()) {
+				System.err.println("Lines must be sorted and not overlap: " + e.getChrom() + ", from " + name);
+				System.exit(1);
+			}
+			if (windowSize % e.getIntervalSize() != 0) {
+				System.err.println("Window size must be a multiple of the interval size: " + e.getChrom() + ", from " + name);
+				System.exit(1);
+			}
 		}
-		pw.close();
 	}
-
-	/** Check that the lines match the reference region (from first) */
-	private static boolean lineMatchingRegion(String[] raComp, String[] ra) {
-		for (int i = 0; i < 3; i++) { //check chr, start, end
-			if (!raComp[i].equals(ra[i])) {
-				return false;
+	
+	/** Name of a coverage file's cMBF output (with -k), <file base>_cMBF.bed */
+	private static String trackName(int i) {
+		String s = filenames.get(i);
+		String base = s.substring(0, s.length() - (s.endsWith(".gz") ? 7 : 4));
+		return base + "_cMBF" + (compressed ? ".bed.gz" : ".bed");
+	}
+	
+	/** Part of each coverage file's cMBF output for the c-th chromosome */
+	private static File[] trackParts(int c) {
+		File[] parts = new File[filenames.size()];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new File(trackName(i) + "." + c + ".part");
+		}
+		return parts;
+	}
+	
+	/** Concatenate the parts of each coverage file's cMBF output, in chromosome order (a file without the chromosome has no part) */
+	private static void writeTracks(int nChroms) throws IOException {
+		for (int i = 0; i < filenames.size(); i++) {
+			FileOutputStream out = new FileOutputStream(trackName(i));
+			FileChannel outChannel = out.getChannel();
+			for (int c = 0; c < nChroms; c++) {
+				File part = trackParts(c)[i];
+				if (part.exists()) {
+					appendPart(part, outChannel);
+				}
+			}
+			if (compressed) {
+				out.write(BgzfOutputStream.EOF_BLOCK);
 			}
+			out.close();
 		}
-		return true;
 	}
 	
+	/** Append a part file to the output, then delete it */
+	private static void appendPart(File part, FileChannel outChannel) throws IOException {
+		FileInputStream in = new FileInputStream(part);
+		FileChannel partChannel = in.getChannel();
+		long size = partChannel.size();
+		for (long pos = 0; pos < size; ) {
+			pos += partChannel.transferTo(pos, size - pos, outChannel);
+		}
+		in.close();
+		part.delete();
+	}
 
 }
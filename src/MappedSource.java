@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads an uncompressed file through a memory-mapped FileChannel
+ */
+class MappedSource implements ByteSource {
+	/** Bytes of the file mapped at a time */
+	private static final int MAP_SIZE = 1 << 28;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size;
+
+	/** Constructor
+	 * @param f - file to read
+	 * @throws FileNotFoundException - if the file cannot be read
+	 */
+	public MappedSource(File f) throws IOException {
+		try {
+			raf = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		channel = raf.getChannel();
+		size = channel.size();
+	}
+
+	/**
+	 * Open a file for reading a part at a time
+	 * @param f - file, uncompressed or BGZF
+	 * @return BgzfSource if f is a BGZF file, else MappedSource
+	 * @throws IOException - if the file cannot be read, or is gzip but not BGZF (see BgzfSource.readable)
+	 */
+	public static ByteSource open(File f) throws IOException {
+		if (BgzfSource.isGzip(f)) {
+			return new BgzfSource(f);
+		}
+		return new MappedSource(f);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public ByteBuffer map(long offset, int length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	@Override
+	public int getMapSize() {
+		return MAP_SIZE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+
+}
@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximate running median of the read counts in a moving window, in fixed memory whatever the window size
+ * Counts are kept as a histogram: counts below EXACT in a bucket each, larger counts in buckets growing by a factor of (1 + e) / (1 - e),
+ * so a count read from a bucket is within a relative error of e (as in a DDSketch, and mergeable like it)
+ * The rank of the median is always exact, and it is found by moving a pointer along the buckets as counts enter and leave, O(1) on average,
+ * so medians below EXACT are exact, and larger ones within the relative error
+ */
+class MedianSketch implements WindowMedian {
+	/** Counts below this are held exactly */
+	public static final int EXACT = 1024;
+	/** Smallest relative error, as the buckets grow as 1 / e (about 74000 buckets, 580 KB, at this error) */
+	public static final double MIN_ERROR = 1e-4;
+
+	/** Medians taken from a bucket of larger counts (approximate), over all sketches */
+	private static final AtomicLong approximated = new AtomicLong();
+
+	/** Relative error of a count read from a bucket of large counts */
+	private double error;
+	/** Log of the factor each bucket of large counts grows by */
+	private double logGrowth;
+	/** Count of values in each bucket */
+	private int[] freq;
+	/** Value given for each bucket */
+	private int[] value;
+	private int count;
+
+	/** Bucket holding the lower middle value */
+	private int cur;
+	/** Number of values in the buckets below cur */
+	private int below;
+
+	/** Constructor
+	 * @param e - relative error of counts of EXACT or more, MIN_ERROR <= e < 1
+	 */
+	public MedianSketch(double e) {
+		error = e;
+		double growth = (1 + e) / (1 - e);
+		logGrowth = Math.log(growth);
+		int n = buckets(e);
+		freq = new int[n];
+		value = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (i < EXACT) {
+				value[i] = i;
+			}
+			else {
+				// 2LU / (L + U) is within e of every count in [L, U)
+				double low = EXACT * Math.exp((i - EXACT) * logGrowth);
+				value[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(2 * low * growth / (1 + growth)));
+			}
+		}
+		count = 0;
+		cur = 0;
+		below = 0;
+	}
+
+	/** Number of buckets of a sketch, enough for every count */
+	private static int buckets(double e) {
+		return EXACT + (int) (Math.log((double) Integer.MAX_VALUE / EXACT) / Math.log((1 + e) / (1 - e))) + 1;
+	}
+
+	/** Bytes held by a sketch whatever the window size (its buckets)
+	 * @param e - relative error
+	 */
+	public static long bytes(double e) {
+		return 8L * buckets(e);
+	}
+
+	/** Bucket of a count */
+	private int bucketOf(int rc) {
+		if (rc < EXACT) {
+			return rc;
+		}
+		return EXACT + (int) (Math.log((double) rc / EXACT) / logGrowth);
+	}
+
+	@Override
+	public void add(int rc) {
+		int b = bucketOf(rc);
+		freq[b]++;
+		count++;
+		if (b < cur) {
+			below++;
+		}
+		seek();
+	}
+
+	@Override
+	public void evict(int rc) {
+		int b = bucketOf(rc);
+		freq[b]--;
+		count--;
+		if (b < cur) {
+			below--;
+		}
+		seek();
+	}
+
+	/** Move cur to the bucket holding the lower middle value (rank (count - 1) / 2) */
+	private void seek() {
+		if (count == 0) {
+			return;
+		}
+		int k = (count - 1) / 2;
+		while (below > k) {
+			cur--;
+			below -= freq[cur];
+		}
+		while (below + freq[cur] <= k) {
+			below += freq[cur];
+			cur++;
+		}
+	}
+
+	@Override
+	public int lowMiddle() {
+		return value[cur];
+	}
+
+	@Override
+	public int highMiddle() {
+		if (count % 2 != 0 || below + freq[cur] > count / 2) {
+			return value[cur];
+		}
+		int b = cur + 1;
+		while (freq[b] == 0) {
+			b++;
+		}
+		return value[b];
+	}
+
+	/** Relative error of the approximate medians */
+	public double getError() {
+		return error;
+	}
+
+	/** Count a median taken approximately (either middle value of EXACT or more), once per median */
+	public static void addApproximated() {
+		approximated.incrementAndGet();
+	}
+
+	/** Number of medians taken approximately (of EXACT or more), over all sketches */
+	public static long getApproximated() {
+		return approximated.get();
+	}
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Heap set aside for the work running at once (chromosomes admitted by the Calculator, and the tiles each holds in memory)
+ * Work is admitted while its estimated memory fits in what is left, and work too big for the budget is admitted when nothing else holds any,
+ * so each part of the work always runs, one at a time if need be
+ */
+class MemoryBudget {
+	/** Bytes of the budget */
+	private long capacity;
+	/** Bytes held by work admitted */
+	private long used;
+
+	/** Constructor
+	 * @param c - bytes of the budget
+	 */
+	public MemoryBudget(long c) {
+		capacity = c;
+		used = 0;
+	}
+
+	/**
+	 * Admit work, waiting until its memory fits
+	 * @param n - bytes of the work
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public synchronized void acquire(long n) throws InterruptedException {
+		while (used > 0 && used + n > capacity) {
+			wait();
+		}
+		used += n;
+	}
+
+	/**
+	 * Admit work if its memory fits now
+	 * @param n - bytes of the work
+	 * @return true if admitted
+	 */
+	public synchronized boolean tryAcquire(long n) {
+		if (used > 0 && used + n > capacity) {
+			return false;
+		}
+		used += n;
+		return true;
+	}
+
+	/** Give back the memory of work that is done
+	 * @param n - bytes of the work, as admitted
+	 */
+	public synchronized void release(long n) {
+		used -= n;
+		notifyAll();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+}
@@ -0,0 +1,43 @@
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Times the phases of a run (indexing, calculating, merging), printing each one's wall time as it ends
+ */
+class PhaseTimer {
+	private long start;
+	private long phaseStart;
+	/** Seconds taken by each phase ended */
+	private LinkedHashMap<String, Double> phases = new LinkedHashMap<String, Double>();
+
+	/** Constructor, starting the first phase */
+	public PhaseTimer() {
+		start = System.nanoTime();
+		phaseStart = start;
+	}
+
+	/**
+	 * End the current phase and start the next, printing "<name> in <seconds> s"
+	 * @param name - name of the phase ended
+	 * @return seconds taken by the phase
+	 */
+	public double end(String name) {
+		long now = System.nanoTime();
+		double seconds = (now - phaseStart) / 1e9;
+		phaseStart = now;
+		phases.put(name, seconds);
+		System.out.println(String.format(Locale.ROOT, "%s in %.2f s", name, seconds));
+		return seconds;
+	}
+
+	/** Seconds taken by each phase ended, in order */
+	public LinkedHashMap<String, Double> getPhases() {
+		return phases;
+	}
+
+	/** Seconds since the first phase started */
+	public double total() {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+}
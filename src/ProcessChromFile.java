@@ -1,31 +1,133 @@
 import java.io.File;
-import java.io.PrintWriter;
-import java.util.Scanner;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-/** Processes a chromosome file given by Calculator */
+/** Processes a chromosome's lines of the input file given by Calculator */
 public class ProcessChromFile implements Callable<File> {
 	//-- Static parameters, shared between file processings --
 	
+	/** Input bytes per tile when splitting a chromosome */
+	private static final long TILE_BYTES = 1 << 24;
+	/** Heap per walk for reading its lines (buffers of BgzfSource and BedReader) */
+	private static final long READER_BYTES = 1 << 23;
+	/** Flight Recorder event of each chromosome processed */
+	private static final FlightEvent EVENT = new FlightEvent("ngs.ProcessChrom", "Process Chromosome",
+			new String[] {"chrom", "bins", "inputBytes"}, new Class<?>[] {String.class, long.class, long.class});
+	
 	/** Window size for calculating cMBF (in bp) */
 	private static Integer windowbpSize;
-	/** Read resolution / width of bin */
-	private static int intervalSize;
 	/** Median multiple */
 	private static double medianMult;
 	private static String outBaseName = null;
+	/** Write the binary .cmbf format instead of bedGraph */
+	private static boolean binary = false;
+	/** Merge adjacent intervals with the same printed cMBF into one line (see RunLengthWriter) */
+	private static boolean runLength = false;
+	/** Write bed output compressed as BGZF (see BgzfOutputStream) */
+	private static boolean compressed = false;
+	/** Memory budget the chromosomes and their tiles are admitted against, null if not limited */
+	private static MemoryBudget budget = null;
 
-	//-- Specific file parameters --
-	private String dirName;
-	private File chromFile;
+	//-- Specific chromosome parameters --
+	private File inFile;
+	private ChromIndex.Entry chromEntry;
+	private String outPrefix;
+	/** Whole genome output file and the chromosome's reserved part of it, if not writing a chromosome file */
+	private File wholeFile;
+	private FileChannel wholeChannel;
+	private long wholeOffset;
+	/** Chromosome of the bigWig output file, if writing bigWig */
+	private BigWigWriter.Chrom bigWigChrom;
+	/** Metrics of the chromosome, null if not kept */
+	private RunMetrics.Chrom metrics;
+	/** Target regions (sorted, not overlapping) to calculate instead of the whole chromosome, null if none */
+	private int[] regionStarts;
+	private int[] regionEnds;
 
 	/** Constructor for setting up process
-	 * @param dN - directory name
-	 * @param cF - chromosome file
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome's lines in the input file
+	 * @param oP - output path prefix (output directory and separator)
+	 */
+	public ProcessChromFile(File iF, ChromIndex.Entry cE, String oP) {
+		inFile = iF;
+		chromEntry = cE;
+		outPrefix = oP;
+		wholeChannel = null;
+	}
+	
+	/** Constructor for setting up process writing straight into the whole genome output file
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome's lines in the input file
+	 * @param wF - whole genome output file
+	 * @param wC - channel of the whole genome output file, shared with other processes
+	 * @param wO - offset of the chromosome's part (see outputSize)
+	 */
+	public ProcessChromFile(File iF, ChromIndex.Entry cE, File wF, FileChannel wC, long wO) {
+		inFile = iF;
+		chromEntry = cE;
+		wholeFile = wF;
+		wholeChannel = wC;
+		wholeOffset = wO;
+	}
+	
+	/** Constructor for setting up process writing to a bigWig output file
+	 * @param iF - input file
+	 * @param cE - index entry of the chromosome's lines in the input file
+	 * @param bF - bigWig output file
+	 * @param bC - the chromosome's writer of the bigWig file (see BigWigWriter.addChrom)
+	 */
+	public ProcessChromFile(File iF, ChromIndex.Entry cE, File bF, BigWigWriter.Chrom bC) {
+		inFile = iF;
+		chromEntry = cE;
+		wholeFile = bF;
+		wholeChannel = null;
+		bigWigChrom = bC;
+	}
+	
+	/** Keep metrics of the chromosome
+	 * @param m
+	 */
+	public void setMetrics(RunMetrics.Chrom m) {
+		metrics = m;
+	}
+	
+	/** Calculate only the intervals overlapping target regions
+	 * @param s - region starts, sorted
+	 * @param e - region ends, each before the next region's start
 	 */
-	public ProcessChromFile(String dN, File cF) {
-		dirName = dN;
-		chromFile = cF;
+	public void setRegions(int[] s, int[] e) {
+		regionStarts = s;
+		regionEnds = e;
+	}
+	
+	/** Output file: the chromosome's file, or the whole genome file its output goes in */
+	public File getOutFile() {
+		if (wholeChannel != null || bigWigChrom != null) {
+			return wholeFile;
+		}
+		String chromName = chromEntry.getChrom();
+		String outFileName = (outBaseName == null ? "out" : outBaseName) + "_" + chromName;
+		return new File(outPrefix + outFileName + getExtension());
+	}
+	
+	/** Number of bins calculated: the chromosome's, or those overlapping its target regions */
+	public long getBins() {
+		if (regionStarts == null) {
+			return chromEntry.getBins();
+		}
+		long n = 0;
+		for (int i = 0; i < regionStarts.length; i++) {
+			long[] bins = ChromTile.regionBins(chromEntry, regionStarts[i], regionEnds[i]);
+			n += bins[1] - bins[0];
+		}
+		return n;
 	}
 	
 	/** Set window size
@@ -35,13 +137,6 @@ public class ProcessChromFile implements Callable<File> {
 		windowbpSize = wS;
 	}
 	
-	/** Set interval size
-	 * @param iS
-	 */
-	public static void setIntSize(int iS) {
-		intervalSize = iS;
-	}
-	
 	/** Set median multiple
 	 * @param mM
 	 */
@@ -55,154 +150,246 @@ public class ProcessChromFile implements Callable<File> {
 	public static void setOutBaseName(String oBN) {
 		outBaseName = oBN;
 	}
+	
+	/** Set binary output
+	 * @param b
+	 */
+	public static void setBinary(boolean b) {
+		binary = b;
+	}
+	
+	/** Set run-length merged output
+	 * @param rL
+	 */
+	public static void setRunLength(boolean rL) {
+		runLength = rL;
+	}
+	
+	/** Set BGZF compressed output
+	 * @param c
+	 */
+	public static void setCompressed(boolean c) {
+		compressed = c;
+	}
+	
+	/** Set memory budget (the chromosome's own need is admitted by the caller, see memoryNeed)
+	 * @param b
+	 */
+	public static void setBudget(MemoryBudget b) {
+		budget = b;
+	}
+	
+	/** Output file extension */
+	public static String getExtension() {
+		return binary ? ".cmbf" : compressed ? ".bed.gz" : ".bed";
+	}
+
+	/**
+	 * Number of bytes of output for a chromosome, known ahead if every bin but the last is a whole interval (see ChromIndex.Entry.hasEvenBins)
+	 * Each bin gives one output line, with a cMBF printed as 7 characters (0.00000 to 1.00000),
+	 * or one value of a .cmbf section (a second section holding the last bin, if its width differs)
+	 * @param e - index entry of the chromosome
+	 * @return number of bytes, -1 if not known ahead (or merging runs of intervals, or compressing)
+	 */
+	public static long outputSize(ChromIndex.Entry e) {
+		if (!e.hasEvenBins() || runLength || compressed) {
+			return -1;
+		}
+		long n = e.getBins();
+		int w = e.getIntervalSize();
+		boolean narrowLast = e.getLastBinSize() != w;
+		if (binary) {
+			if (n > 1 && narrowLast) {
+				return CmbfWriter.sectionSize(e.getChrom(), n - 1) + CmbfWriter.sectionSize(e.getChrom(), 1);
+			}
+			return CmbfWriter.sectionSize(e.getChrom(), n);
+		}
+		int chromBytes = e.getChrom().getBytes(StandardCharsets.ISO_8859_1).length;
+		long coordChars = ChromIndex.chars(e.getFirstStart(), w, n) + ChromIndex.chars((long) e.getFirstStart() + w, w, n - 1) + ChromIndex.chars(e.getLastEnd());
+		return coordChars + n * (chromBytes + 11);
+	}
 
+	/** Number of tiles a chromosome is split into, 1 if walked whole */
+	private static long tileCount(ChromIndex.Entry e) {
+		long nTiles = (e.getTo() - e.getFrom() + TILE_BYTES - 1) / TILE_BYTES;
+		return Math.max(1, Math.min(nTiles, e.getBins() / (4L * Math.max(1, windowbpSize / e.getIntervalSize()))));
+	}
+	
+	/**
+	 * Estimated heap held by a walk of the window, and its output held in memory if a tile
+	 * @param e - index entry of the chromosome
+	 * @param tileBytes - input bytes of the tile, 0 if the walk writes straight to the chromosome output
+	 * @return bytes
+	 */
+	private static long walkMemory(ChromIndex.Entry e, long tileBytes) {
+		long bytes = (long) (windowbpSize / e.getIntervalSize()) * IntWindow.bytesPerBin() + IntWindow.fixedBytes() + READER_BYTES;
+		if (tileBytes > 0) {
+			long tileBins = e.getBins() * tileBytes / Math.max(1, e.getTo() - e.getFrom()) + 1;
+			long lineBytes = binary ? 3 : e.getChrom().length() + 2 * ChromIndex.chars(e.getLastEnd()) + 11;
+			bytes += tileBins * lineBytes;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Estimated heap needed to process a chromosome with one walk running: its window, and a tile's output if the chromosome is split
+	 * More tiles are run at once only as the memory budget allows
+	 * @param e - index entry of the chromosome
+	 * @return bytes
+	 */
+	public static long memoryNeed(ChromIndex.Entry e) {
+		long nTiles = tileCount(e);
+		return walkMemory(e, nTiles > 1 ? (e.getTo() - e.getFrom()) / nTiles : 0);
+	}
+	
 	/**
-	 * Process chromosome file and calculate cMBF for each interval
-	 * @return Chromosome output file
+	 * Process chromosome lines and calculate cMBF for each interval
+	 * @return Chromosome output file (or whole genome output file)
 	 */
 	@Override
 	public File call() throws Exception {
-		//-- Set up output directory and files --
-		String outDirName = dirName.substring(0, dirName.lastIndexOf("_ChromFiles")) + "_out";
-		String spacer = "/";
-		File outDir = new File(outDirName);
-		boolean outFolderMade = outDir.mkdir(); 
-		if (!outDir.exists() && !outFolderMade) {
-			spacer = "_";
+		Object event = EVENT.begin();
+		if (metrics != null) {
+			metrics.start();
 		}
 		
-		String outFileName = "";
-		String chromFileName = chromFile.getName().substring(0, chromFile.getName().length() - 4);
-		
-		if (outBaseName == null) {
-			outFileName = "out_" + chromFileName;
+		//-- Set up output file --
+		File outFile;
+		TrackWriter pw;
+		BedGraphWriter bedGraphOut = null;
+		CmbfWriter cmbfOut = null;
+		if (bigWigChrom != null) {
+			outFile = wholeFile;
+			pw = bigWigChrom;
+		}
+		else if (wholeChannel != null) {
+			outFile = wholeFile;
+			if (binary) {
+				pw = cmbfOut = new CmbfWriter(wholeChannel, wholeOffset);
+			}
+			else {
+				pw = bedGraphOut = new BedGraphWriter(wholeChannel, wholeOffset);
+			}
 		}
 		else {
-			outFileName = outBaseName + "_" + chromFileName;
+			outFile = getOutFile();
+			if (binary) {
+				pw = cmbfOut = new CmbfWriter(outFile);
+			}
+			else if (compressed) {
+				pw = bedGraphOut = new BedGraphWriter(new BgzfOutputStream(new FileOutputStream(outFile)), false);
+			}
+			else {
+				pw = bedGraphOut = new BedGraphWriter(outFile);
+			}
+		}
+		RunLengthWriter runs = null;
+		if (runLength) {
+			pw = runs = new RunLengthWriter(pw, true);
 		}
-		
-		//-- Output file printing --
-		String outFilePath = outDirName + spacer + outFileName;
-		//File outFile = new File(outFilePath + ".bedGraph");
-		File outFile = new File(outFilePath + ".bed");
-		PrintWriter pw = new PrintWriter(outFile);
 		/*pw.println("track type=bedGraph name=\"" + outFilePath + "\"" + " description=\"" + outFilePath + "\" "
 				+ "visibility=full autoScale=Off alwaysZero=On maxHeightPixels=128:30:11 viewLimits=0:1"); //header*/
 
-		Scanner sc = new Scanner(chromFile);
-		if (!sc.hasNextLine()) {
-			sc.close();
+		if (!chromEntry.isOrdered()) {
 			pw.close();
-			return outFile;
-		}
-
-		String line = sc.nextLine();
-		IntStats startIS = parseLine(line);
-		
-		if (startIS == null) {
-			System.err.println("Unable to parse line: " + line + "\nfrom file " + chromFile.getPath());
+			System.err.println("Lines must be sorted and not overlap: " + chromEntry.getChrom() + ", from " + inFile.getPath());
 			System.exit(1);
 		}
-
-		int index = startIS.getStart();
-		intervalSize = startIS.getEnd() - startIS.getStart();
-		String chromNum = startIS.getChromNum();
-		
+		int intervalSize = chromEntry.getIntervalSize();
 		if (windowbpSize % intervalSize != 0) {
-			sc.close();
 			pw.close();
 			System.err.println("Window size must be a multiple of the interval size");
 			System.exit(0);
 		}
 
-		IntWindow window = new IntWindow(chromNum, windowbpSize, intervalSize, medianMult, index);
-		window.insert(startIS);
-
-		// Parse through file for position index and its read count
-		while(sc.hasNextLine()) {
-			if (window.toFill() > 0) {
-				line = sc.nextLine();
-				IntStats ps = parseLine(line);
-				if (ps == null) continue;
-				window.insert(ps);
-			}
-
-			if (window.full()) { // Filled window, calculate stats for current position and increment (middle indices)
-				printIndexStats(pw, window);
-
-				if (!sc.hasNextLine()) {
-					window.setEndOfChrom();
+		//-- Split chromosomes into tiles, each at least a few windows long, or a tile for each target region --
+		ArrayList<ChromTile> tiles = new ArrayList<ChromTile>();
+		long bytes = chromEntry.getTo() - chromEntry.getFrom();
+		long nTiles = tileCount(chromEntry);
+		long regionBytes = 0;
+		if (regionStarts != null) {
+			long maxBins = 0;
+			for (int i = 0; i < regionStarts.length; i++) {
+				long[] bins = ChromTile.regionBins(chromEntry, regionStarts[i], regionEnds[i]);
+				if (bins[1] > bins[0]) {
+					tiles.add(ChromTile.ofRegion(inFile, chromEntry, regionStarts[i], regionEnds[i], windowbpSize, medianMult, tileOutput(bedGraphOut, cmbfOut, runs, pw), metrics));
+					maxBins = Math.max(maxBins, bins[1] - bins[0]);
 				}
-
-				window.incrCenter();
-				index += intervalSize;
 			}
+			regionBytes = bytes * maxBins / Math.max(1, chromEntry.getBins()) + 1;
 		}
-
-		if (!sc.hasNextLine()) { // Reached end of file, finish computing for last indices
-			window.setEndOfChrom();
-
-			if (!window.full()) { // Reached end of file, but window not filled
-				windowbpSize = window.setSmallerWindowSize() * intervalSize;
+		else if (nTiles > 1) {
+			ByteSource source = MappedSource.open(inFile);
+			long tileFrom = chromEntry.getFrom();
+			for (long i = 1; i <= nTiles; i++) {
+				long tileTo = i == nTiles ? chromEntry.getTo()
+						: ChromIndex.lineStartAfter(source, chromEntry.getFrom() + bytes * i / nTiles);
+				if (tileTo > tileFrom) {
+					tiles.add(new ChromTile(inFile, chromEntry, tileFrom, tileTo, windowbpSize, medianMult, tileOutput(bedGraphOut, cmbfOut, runs, pw), metrics));
+					tileFrom = tileTo;
+				}
 			}
+			source.close();
+		}
 
-			int lastIndex =  window.getLastStartIndex();
-
-			for (index += 0; index <= lastIndex; index += intervalSize) {
-				printIndexStats(pw, window);
-				window.incrCenter();
+		if (regionStarts == null && tiles.size() <= 1) {
+			new ChromTile(inFile, chromEntry, windowbpSize, medianMult, pw, metrics).invoke();
+		}
+		else {
+			// Run tiles in the fork-join pool, keeping a limited number ahead of the one being written,
+			// the first admitted with the chromosome, and the rest as the memory budget allows
+			ForkJoinPool pool = ForkJoinTask.getPool();
+			int ahead = 2 * (pool == null ? Runtime.getRuntime().availableProcessors() : pool.getParallelism());
+			long tileMemory = walkMemory(chromEntry, regionStarts != null ? regionBytes : bytes / tiles.size());
+			boolean[] admitted = new boolean[tiles.size()];
+			int forked = 0;
+			for (int i = 0; i < tiles.size(); i++) {
+				while (forked < tiles.size() && forked < i + ahead
+						&& (forked == i || budget == null || budget.tryAcquire(tileMemory))) {
+					admitted[forked] = forked != i && budget != null;
+					tiles.get(forked).fork();
+					forked++;
+				}
+				tiles.get(i).join();
+				long t = System.nanoTime();
+				tiles.get(i).writeOut();
+				if (metrics != null) {
+					metrics.addWrite(System.nanoTime() - t);
+				}
+				tiles.set(i, null);
+				if (admitted[i]) {
+					budget.release(tileMemory);
+				}
 			}
-
 		}
 		
-		sc.close();
+		long t = System.nanoTime();
 		pw.close();
+		if (metrics != null) {
+			metrics.addWrite(System.nanoTime() - t);
+			metrics.end();
+		}
+		EVENT.commit(event, chromEntry.getChrom(), getBins(), chromEntry.getTo() - chromEntry.getFrom());
+		if (wholeChannel != null && pw.getPosition() != wholeOffset + outputSize(chromEntry)) {
+			throw new IOException("Output of " + chromEntry.getChrom() + " does not fit its part of " + wholeFile.getPath());
+		}
 		return outFile;
 	}
 
-	/** Parse line
-	 * @param line - line to parse
-	 * @return - IntStats object containing interval statistics
+	/**
+	 * Output of a tile, held in memory until written in order to the chromosome output, one of:
+	 * @param bedGraphOut - bedGraph output
+	 * @param cmbfOut - .cmbf output
+	 * @param runs - writer merging runs into either, or null if not merging
+	 * @param pw - any other output (bigWig), written line by line
 	 */
-	public IntStats parseLine(String line) {
-		String[] ra = line.split("\\s+");
-		if (line.isEmpty() || ra.length == 0) return null;
-
-		try {
-			String chromNum;
-			int intStart, intEnd, intReadCount;
-			
-			chromNum = ra[0];
-			intStart = Integer.parseInt(ra[1]);
-			intEnd = Integer.parseInt(ra[2]);
-			intReadCount = Integer.parseInt(ra[3]);
-			return new IntStats(chromNum, intStart, intEnd, intervalSize, intReadCount);
-		} catch (NumberFormatException e) {
-			System.err.println("File has improper values: " + line);
-			System.exit(1);
-		} catch (IndexOutOfBoundsException e) {
-			System.err.println("Improper file formatting/values: " + line);
-			System.exit(1);
+	private static TileOutput tileOutput(BedGraphWriter bedGraphOut, CmbfWriter cmbfOut, RunLengthWriter runs, TrackWriter pw) {
+		if (bedGraphOut != null) {
+			return new TileOutput(bedGraphOut, runs);
 		}
-
-		return null;
-	}
-
-	/** Print index statistics to the given PrintWriter
-	 * @param pw - PrintWriter
-	 * @param window - IntWindow window to get statistics from
-	 */
-	public void printIndexStats(PrintWriter pw, IntWindow window) {
-		try {
-			String cN = window.getChromNum();
-			int iS = window.getIndexStart();
-			int iE = window.getIndexEnd();
-			double icMBF = window.calccMBF();
-
-			pw.printf("%s\t%d\t%d\t%.5f\n", cN, iS, iE, icMBF);
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+		if (cmbfOut != null) {
+			return new TileOutput(cmbfOut, runs);
 		}
+		return new TileOutput(pw);
 	}
 }
@@ -0,0 +1,126 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Target regions read from a .bed file (chromosome, start and end, any further fields ignored), in any order
+ * Each chromosome's regions are sorted, and overlapping or adjacent regions are merged
+ */
+class Regions {
+	/** Starts, then ends, of each chromosome's regions */
+	private HashMap<String, int[][]> regions;
+
+	private Regions(HashMap<String, int[][]> r) {
+		regions = r;
+	}
+
+	/**
+	 * Read the regions of a .bed file (or .bed.gz), skipping track, browser and # lines
+	 * @param f - regions file
+	 * @return the regions
+	 * @throws IOException - if the file cannot be read, or a line is not a region
+	 */
+	public static Regions read(File f) throws IOException {
+		InputStream in;
+		try {
+			in = new FileInputStream(f);
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		if (f.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1), 1 << 16);
+
+		HashMap<String, ArrayList<long[]>> read = new HashMap<String, ArrayList<long[]>>();
+		try {
+			int lineNum = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNum++;
+				if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				long s;
+				long e;
+				try {
+					s = Long.parseLong(fields[1]);
+					e = Long.parseLong(fields[2]);
+				} catch (RuntimeException ex) {
+					s = -1;
+					e = -1;
+				}
+				if (fields.length < 3 || s < 0 || e <= s || e > Integer.MAX_VALUE) {
+					throw new IOException("Not a region (chromosome, start, end) at line " + lineNum + " of " + f.getPath() + ": " + line);
+				}
+				ArrayList<long[]> list = read.get(fields[0]);
+				if (list == null) {
+					list = new ArrayList<long[]>();
+					read.put(fields[0], list);
+				}
+				list.add(new long[] {s, e});
+			}
+		} finally {
+			reader.close();
+		}
+
+		//-- Sort each chromosome's regions and merge overlapping ones --
+		HashMap<String, int[][]> regions = new HashMap<String, int[][]>();
+		for (String chrom : read.keySet()) {
+			ArrayList<long[]> list = read.get(chrom);
+			long[] packed = new long[list.size()];
+			for (int i = 0; i < packed.length; i++) {
+				packed[i] = list.get(i)[0] << 32 | list.get(i)[1];
+			}
+			Arrays.sort(packed);
+			int[] starts = new int[packed.length];
+			int[] ends = new int[packed.length];
+			int n = 0;
+			for (long p : packed) {
+				int s = (int) (p >>> 32);
+				int e = (int) p;
+				if (n > 0 && s <= ends[n - 1]) {
+					ends[n - 1] = Math.max(ends[n - 1], e);
+				}
+				else {
+					starts[n] = s;
+					ends[n] = e;
+					n++;
+				}
+			}
+			regions.put(chrom, new int[][] {Arrays.copyOf(starts, n), Arrays.copyOf(ends, n)});
+		}
+		return new Regions(regions);
+	}
+
+	/** Chromosomes with regions */
+	public Set<String> getChroms() {
+		return regions.keySet();
+	}
+
+	/** True if the chromosome has regions */
+	public boolean has(String chrom) {
+		return regions.containsKey(chrom);
+	}
+
+	/** Starts of a chromosome's regions, sorted */
+	public int[] getStarts(String chrom) {
+		return regions.get(chrom)[0];
+	}
+
+	/** Ends of a chromosome's regions */
+	public int[] getEnds(String chrom) {
+		return regions.get(chrom)[1];
+	}
+
+}
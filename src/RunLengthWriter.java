@@ -0,0 +1,77 @@
+import java.io.IOException;
+
+/**
+ * Merges runs of adjacent lines with the same printed value into one line, written to another TrackWriter
+ * A run is held until a line does not continue it, so only one line is held at a time
+ */
+class RunLengthWriter implements TrackWriter {
+	private TrackWriter out;
+	/** True if values are compared to 5 decimal places (as printed in bedGraph), false if compared exactly */
+	private boolean rounded;
+
+	//-- Current run --
+	private String chrom;
+	private int start;
+	private int end;
+	private double value;
+	/** Value of the run in units of 0.00001 (see BedGraphWriter.round5), -1 if only equal values continue it */
+	private long units;
+
+	/** Constructor
+	 * @param w - writer of the merged lines
+	 * @param rd - true to merge values equal to 5 decimal places, false to merge only equal values
+	 */
+	public RunLengthWriter(TrackWriter w, boolean rd) {
+		out = w;
+		rounded = rd;
+		chrom = null;
+	}
+
+	@Override
+	public void write(String cN, int s, int e, double v) throws IOException {
+		if (chrom != null && s == end && cN.equals(chrom) && same(v)) {
+			end = e;
+			return;
+		}
+		endRun();
+		chrom = cN;
+		start = s;
+		end = e;
+		value = v;
+		units = rounded && v >= 0 ? BedGraphWriter.round5(v) : -1;
+	}
+
+	/** True if the value prints the same as the run's */
+	private boolean same(double v) {
+		if (v == value) {
+			return true;
+		}
+		return units >= 0 && v >= 0 && BedGraphWriter.round5(v) == units;
+	}
+
+	/** Write the current run */
+	void endRun() throws IOException {
+		if (chrom != null) {
+			out.write(chrom, start, end, value);
+			chrom = null;
+		}
+	}
+
+	/** Position of the lines written, not counting the current run */
+	@Override
+	public long getPosition() {
+		return out.getPosition();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		endRun();
+		out.close();
+	}
+
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Manifest of a Calculator run, kept in the output directory so a run that stops partway can be resumed by running the same command
+ * Holds the run's parameters, then a line for each chromosome as it completes: its input size and checksum (CRC32 of its lines),
+ * and its output file, offset and length in the file
+ * A chromosome is skipped when run again only if the parameters are the same, its input has the same size and checksum,
+ * and its output is still there at the same length
+ */
+class RunManifest {
+	private static final String HEADER = "#NGS-Integrator run manifest";
+	private static final String PARAMS = "params";
+	private static final String DONE = "done";
+
+	private File file;
+	private File inFile;
+	/** Chromosomes completed by earlier runs */
+	private HashMap<String, Record> records = new HashMap<String, Record>();
+	private FileOutputStream out;
+
+	/** A chromosome completed */
+	private static class Record {
+		long inputBytes;
+		long checksum;
+		String output;
+		long offset;
+		long length;
+	}
+
+	/**
+	 * Open the manifest of a run, keeping the chromosomes completed by earlier runs with the same parameters
+	 * @param f - manifest file
+	 * @param params - parameters the outputs depend on, as one line
+	 * @param iF - input file the chromosomes are read from (see ChromIndex.getFile)
+	 * @return the manifest, to which chromosomes are added as they complete
+	 * @throws IOException - if the manifest cannot be written
+	 */
+	public static RunManifest open(File f, String params, File iF) throws IOException {
+		RunManifest m = new RunManifest();
+		m.file = f;
+		m.inFile = iF;
+		boolean same = false;
+		if (f.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					String[] fields = line.split("\t");
+					if (fields[0].equals(PARAMS)) {
+						same = line.equals(PARAMS + "\t" + params);
+					}
+					else if (same && fields[0].equals(DONE) && fields.length == 7) {
+						try {
+							Record r = new Record();
+							r.inputBytes = Long.parseLong(fields[2]);
+							r.checksum = Long.parseLong(fields[3], 16);
+							r.output = fields[4];
+							r.offset = Long.parseLong(fields[5]);
+							r.length = Long.parseLong(fields[6]);
+							m.records.put(fields[1], r);
+						} catch (NumberFormatException e) {
+							// line cut short by a run stopping as it was written
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			if (!same) {
+				System.out.println("Parameters differ from the earlier run in " + f.getPath() + ", calculating all chromosomes.");
+			}
+		}
+
+		m.out = new FileOutputStream(f, same);
+		if (!same) {
+			m.append(HEADER + "\n" + PARAMS + "\t" + params + "\n");
+		}
+		return m;
+	}
+
+	/**
+	 * True if a chromosome was completed by an earlier run, and its input and output are the same
+	 * @param e - index entry of the chromosome
+	 * @param output - output file
+	 * @param offset - offset of the chromosome's output in the file
+	 * @param length - length of the chromosome's output, -1 if not known ahead (the whole file)
+	 * @throws IOException - if the input cannot be read
+	 */
+	public boolean isComplete(ChromIndex.Entry e, File output, long offset, long length) throws IOException {
+		Record r = records.get(e.getChrom());
+		if (r == null || r.inputBytes != e.getTo() - e.getFrom() || !r.output.equals(output.getPath())
+				|| r.offset != offset || (length >= 0 && r.length != length)) {
+			return false;
+		}
+		if (length >= 0 ? output.length() < offset + length : output.length() != r.length) {
+			return false;
+		}
+		return checksum(inFile, e) == r.checksum;
+	}
+
+	/**
+	 * Add a completed chromosome, once its output is on disk
+	 * @param e - index entry of the chromosome
+	 * @param output - output file
+	 * @param offset - offset of the chromosome's output in the file
+	 * @param length - length of the chromosome's output, -1 for the whole file
+	 * @throws IOException - if the input cannot be read, or the manifest cannot be written
+	 */
+	public void complete(ChromIndex.Entry e, File output, long offset, long length) throws IOException {
+		FileInputStream in = new FileInputStream(output);
+		in.getChannel().force(false);
+		in.close();
+		String line = DONE + "\t" + e.getChrom() + "\t" + (e.getTo() - e.getFrom()) + "\t" + Long.toHexString(checksum(inFile, e))
+				+ "\t" + output.getPath() + "\t" + offset + "\t" + (length >= 0 ? length : output.length()) + "\n";
+		append(line);
+	}
+
+	/** Write lines to the manifest, on disk before returning */
+	private synchronized void append(String lines) throws IOException {
+		out.write(lines.getBytes(StandardCharsets.UTF_8));
+		out.getFD().sync();
+	}
+
+	/** Close the manifest, and delete it if the outputs it lists are not kept */
+	public void close(boolean delete) throws IOException {
+		out.close();
+		if (delete && !file.delete()) {
+			System.out.println("Unable to delete " + file.getPath());
+		}
+	}
+
+	/**
+	 * CRC32 of a chromosome's lines in the input (uncompressed, so a BGZF copy of a gzip input has the same)
+	 * @param f - input file
+	 * @param e - index entry of the chromosome
+	 */
+	static long checksum(File f, ChromIndex.Entry e) throws IOException {
+		ByteSource source = MappedSource.open(f);
+		CRC32 crc = new CRC32();
+		byte[] b = new byte[1 << 16];
+		try {
+			for (long offset = e.getFrom(); offset < e.getTo(); ) {
+				ByteBuffer bb = source.map(offset, (int) Math.min(source.getMapSize(), e.getTo() - offset));
+				if (!bb.hasRemaining()) {
+					break;
+				}
+				offset += bb.remaining();
+				while (bb.hasRemaining()) {
+					int n = Math.min(b.length, bb.remaining());
+					bb.get(b, 0, n);
+					crc.update(b, 0, n);
+				}
+			}
+		} finally {
+			source.close();
+		}
+		return crc.getValue();
+	}
+
+}
@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a Calculator run: bins calculated and time spent by each chromosome, printed as periodic progress lines and written as a JSON summary
+ * Where the time goes (parsing lines, moving the window and its median, formatting lines) is timed on 1 in SAMPLE positions,
+ * then the time walking the windows is split by these shares (timing every stage of every position would slow the walk, and inflate its time)
+ * Time writing the output (tiles copied in order, and closing) is timed in full
+ */
+class RunMetrics {
+	/** One in SAMPLE positions is timed, stage by stage */
+	public static final int SAMPLE = 64;
+	/** Heap sampled this often (ms) while progress is reported */
+	private static final long HEAP_SAMPLE_MS = 1000;
+
+	private static final ArrayList<Chrom> chroms = new ArrayList<Chrom>();
+	private static long totalBins = 0;
+	private static long peakHeap = 0;
+	private static Thread reporter = null;
+
+	/** Metrics of a chromosome, added to by each of its tiles */
+	static class Chrom {
+		private String chrom;
+		private long bins;
+		private AtomicLong done = new AtomicLong();
+		private AtomicLong walkNanos = new AtomicLong();
+		private AtomicLong parseNanos = new AtomicLong();
+		private AtomicLong medianNanos = new AtomicLong();
+		private AtomicLong formatNanos = new AtomicLong();
+		private AtomicLong writeNanos = new AtomicLong();
+		private volatile long startNanos = 0;
+		private volatile long endNanos = 0;
+
+		private Chrom(String c, long b) {
+			chrom = c;
+			bins = b;
+		}
+
+		/** Start timing the chromosome */
+		public void start() {
+			startNanos = System.nanoTime();
+		}
+
+		/** End timing the chromosome */
+		public void end() {
+			endNanos = System.nanoTime();
+		}
+
+		/** Add positions calculated */
+		public void addBins(long n) {
+			done.addAndGet(n);
+		}
+
+		/**
+		 * Add the times of a walk of the window (a tile, or the whole chromosome)
+		 * @param walk - time of the whole walk
+		 * @param parse - time reading lines, for the sampled positions
+		 * @param step - time moving the window and calculating the cMBFs, including parse, for the sampled positions
+		 * @param format - time writing the lines, for the sampled positions
+		 */
+		public void addWalk(long walk, long parse, long step, long format) {
+			walkNanos.addAndGet(walk);
+			parseNanos.addAndGet(parse);
+			medianNanos.addAndGet(step - parse);
+			formatNanos.addAndGet(format);
+		}
+
+		/** Add time writing the chromosome's output (tiles copied in order, and closing) */
+		public void addWrite(long nanos) {
+			writeNanos.addAndGet(nanos);
+		}
+
+		/** Seconds of the walks spent in a stage, from the stage's share of the sampled time */
+		private double stageSeconds(AtomicLong stage) {
+			long sampled = parseNanos.get() + medianNanos.get() + formatNanos.get();
+			return sampled == 0 ? 0 : walkNanos.get() / 1e9 * stage.get() / sampled;
+		}
+
+		private double seconds() {
+			long end = endNanos != 0 ? endNanos : System.nanoTime();
+			return startNanos == 0 ? 0 : (end - startNanos) / 1e9;
+		}
+	}
+
+	/**
+	 * Add a chromosome to the run
+	 * @param c - chromosome
+	 * @param b - bins it has
+	 * @return its metrics
+	 */
+	public static Chrom addChrom(String c, long b) {
+		Chrom m = new Chrom(c, b);
+		synchronized (chroms) {
+			chroms.add(m);
+			totalBins += b;
+		}
+		return m;
+	}
+
+	/**
+	 * Print a progress line every so often, until stopped
+	 * @param seconds - time between progress lines, 0 for none (the heap is still sampled)
+	 * @param pool - pool the chromosomes are run in, for its queue depth
+	 */
+	public static void startProgress(final int seconds, final ForkJoinPool pool) {
+		final long start = System.nanoTime();
+		reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long next = seconds * 1000L;
+				long elapsed = 0;
+				while (true) {
+					try {
+						Thread.sleep(HEAP_SAMPLE_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					sampleHeap();
+					elapsed += HEAP_SAMPLE_MS;
+					if (seconds > 0 && elapsed >= next) {
+						next += seconds * 1000L;
+						System.out.println(progressLine((System.nanoTime() - start) / 1e9, pool));
+					}
+				}
+			}
+		}, "progress");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/** Stop printing progress lines */
+	public static void stopProgress() {
+		sampleHeap();
+		if (reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+
+	private static void sampleHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		synchronized (chroms) {
+			peakHeap = Math.max(peakHeap, used);
+		}
+	}
+
+	/** Progress so far, e.g. "Progress: 3/24 chromosomes, 1200000/3000000 bins (40%), 2.10 Mbins/s, 4 threads active, 8 tasks queued, heap 512/4096 MB" */
+	private static String progressLine(double seconds, ForkJoinPool pool) {
+		long done = 0;
+		int completed = 0;
+		int n;
+		synchronized (chroms) {
+			n = chroms.size();
+			for (Chrom m : chroms) {
+				done += m.done.get();
+				if (m.endNanos != 0) {
+					completed++;
+				}
+			}
+		}
+		Runtime rt = Runtime.getRuntime();
+		return String.format(Locale.ROOT, "Progress: %d/%d chromosomes, %d/%d bins (%.0f%%), %.2f Mbins/s, %d threads active, %d tasks queued, heap %d/%d MB",
+				completed, n, done, totalBins, totalBins == 0 ? 0 : 100.0 * done / totalBins, done / seconds / 1e6,
+				pool.getActiveThreadCount(), pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount(),
+				(rt.totalMemory() - rt.freeMemory()) >> 20, rt.maxMemory() >> 20);
+	}
+
+	/**
+	 * Write the summary of the run
+	 * @param f - JSON output file
+	 * @param params - parameters of the run (numbers or strings)
+	 * @param timer - phases of the run
+	 * @throws FileNotFoundException - if the file cannot be written
+	 */
+	public static void writeJson(File f, Map<String, Object> params, PhaseTimer timer) throws FileNotFoundException {
+		double total = timer.total();
+		PrintWriter out = new PrintWriter(f);
+		out.println("{");
+		for (Map.Entry<String, Object> p : params.entrySet()) {
+			out.println("  " + quote(p.getKey()) + ": " + value(p.getValue()) + ",");
+		}
+		out.println(String.format(Locale.ROOT, "  \"seconds\": %.3f,", total));
+		out.println("  \"phases\": {");
+		int i = 0;
+		for (Map.Entry<String, Double> p : timer.getPhases().entrySet()) {
+			out.println(String.format(Locale.ROOT, "    %s: %.3f%s", quote(p.getKey()), p.getValue(), ++i < timer.getPhases().size() ? "," : ""));
+		}
+		out.println("  },");
+		long done = 0;
+		synchronized (chroms) {
+			for (Chrom m : chroms) {
+				done += m.done.get();
+			}
+			out.println("  \"bins\": " + done + ",");
+			out.println(String.format(Locale.ROOT, "  \"binsPerSecond\": %.0f,", done / total));
+			out.println("  \"peakHeapBytes\": " + peakHeap + ",");
+			out.println("  \"maxHeapBytes\": " + Runtime.getRuntime().maxMemory() + ",");
+			out.println("  \"sampledOneIn\": " + SAMPLE + ",");
+			out.println("  \"chromosomes\": [");
+			for (i = 0; i < chroms.size(); i++) {
+				Chrom m = chroms.get(i);
+				double s = m.seconds();
+				out.println(String.format(Locale.ROOT, "    {\"chrom\": %s, \"bins\": %d, \"seconds\": %.3f, \"binsPerSecond\": %.0f, "
+						+ "\"parseSeconds\": %.3f, \"medianSeconds\": %.3f, \"formatSeconds\": %.3f, \"writeSeconds\": %.3f}%s",
+						quote(m.chrom), m.done.get(), s, s > 0 ? m.done.get() / s : 0, m.stageSeconds(m.parseNanos),
+						m.stageSeconds(m.medianNanos), m.stageSeconds(m.formatNanos), m.writeNanos.get() / 1e9, i + 1 < chroms.size() ? "," : ""));
+			}
+		}
+		out.println("  ]");
+		out.println("}");
+		out.close();
+	}
+
+	private static String value(Object v) {
+		return v == null || v instanceof Number || v instanceof Boolean ? String.valueOf(v) : quote(String.valueOf(v));
+	}
+
+	private static String quote(String s) {
+		StringBuilder b = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				b.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				b.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				b.append(c);
+			}
+		}
+		return b.append('"').toString();
+	}
+
+}
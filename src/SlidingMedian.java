@@ -0,0 +1,184 @@
+/**
+ * Running median of the read counts in a moving window
+ * Counts enter at the back and leave from the front (in window order), and are kept in two indexed heaps
+ * (lower half in a max-heap, upper half in a min-heap) so each insert/evict is O(log w) and the median O(1)
+ */
+class SlidingMedian implements WindowMedian {
+	/** Read count held in each slot of the circular window */
+	private int[] vals;
+	/** Heap position of each slot: >= 0 in the lower heap, ~position in the upper heap */
+	private int[] heapPos;
+
+	private int[] lower;
+	private int lowerSize;
+	private int[] upper;
+	private int upperSize;
+
+	/** Slot of the oldest value in the window */
+	private int head;
+	private int count;
+
+	/** Constructor
+	 * @param capacity - maximum number of values in the window
+	 */
+	public SlidingMedian(int capacity) {
+		vals = new int[capacity];
+		heapPos = new int[capacity];
+		lower = new int[capacity];
+		upper = new int[capacity];
+		head = 0;
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/** Add a read count to the back of the window */
+	@Override
+	public void add(int rc) {
+		if (count == vals.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		int slot = (head + count) % vals.length;
+		vals[slot] = rc;
+		count++;
+
+		if (lowerSize == 0 || rc <= vals[lower[0]]) {
+			lower[lowerSize] = slot;
+			heapPos[slot] = lowerSize;
+			lowerSize++;
+			siftUp(true, lowerSize - 1);
+		}
+		else {
+			upper[upperSize] = slot;
+			heapPos[slot] = ~upperSize;
+			upperSize++;
+			siftUp(false, upperSize - 1);
+		}
+		rebalance();
+	}
+
+	/** Remove the oldest read count from the front of the window
+	 * @param rc - the oldest read count (also held here)
+	 */
+	@Override
+	public void evict(int rc) {
+		if (count == 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		int p = heapPos[head];
+		if (p >= 0) {
+			removeAt(true, p);
+		}
+		else {
+			removeAt(false, ~p);
+		}
+		head = (head + 1) % vals.length;
+		count--;
+		rebalance();
+	}
+
+	/** Lower of the middle two values (the middle value if the window is odd) */
+	@Override
+	public int lowMiddle() {
+		return vals[lower[0]];
+	}
+
+	/** Upper of the middle two values (the middle value if the window is odd) */
+	@Override
+	public int highMiddle() {
+		if (count % 2 == 0) {
+			return vals[upper[0]];
+		}
+		return vals[lower[0]];
+	}
+
+	/** Keep the lower heap the same size as the upper heap, or one larger */
+	private void rebalance() {
+		if (lowerSize > upperSize + 1) {
+			int slot = lower[0];
+			removeAt(true, 0);
+			upper[upperSize] = slot;
+			heapPos[slot] = ~upperSize;
+			upperSize++;
+			siftUp(false, upperSize - 1);
+		}
+		else if (upperSize > lowerSize) {
+			int slot = upper[0];
+			removeAt(false, 0);
+			lower[lowerSize] = slot;
+			heapPos[slot] = lowerSize;
+			lowerSize++;
+			siftUp(true, lowerSize - 1);
+		}
+	}
+
+	private void removeAt(boolean low, int p) {
+		int[] heap = low ? lower : upper;
+		int last;
+		if (low) {
+			last = --lowerSize;
+		}
+		else {
+			last = --upperSize;
+		}
+		if (p < last) {
+			place(low, p, heap[last]);
+			siftDown(low, p);
+			siftUp(low, p);
+		}
+	}
+
+	/** True if value a belongs above value b in the given heap */
+	private static boolean above(boolean low, int a, int b) {
+		return low ? a > b : a < b;
+	}
+
+	private void place(boolean low, int p, int slot) {
+		if (low) {
+			lower[p] = slot;
+			heapPos[slot] = p;
+		}
+		else {
+			upper[p] = slot;
+			heapPos[slot] = ~p;
+		}
+	}
+
+	private void siftUp(boolean low, int p) {
+		int[] heap = low ? lower : upper;
+		int slot = heap[p];
+		while (p > 0) {
+			int parent = (p - 1) / 2;
+			if (!above(low, vals[slot], vals[heap[parent]])) {
+				break;
+			}
+			place(low, p, heap[parent]);
+			p = parent;
+		}
+		place(low, p, slot);
+	}
+
+	private void siftDown(boolean low, int p) {
+		int[] heap = low ? lower : upper;
+		int size = low ? lowerSize : upperSize;
+		int slot = heap[p];
+		while (true) {
+			int child = 2 * p + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && above(low, vals[heap[child + 1]], vals[heap[child]])) {
+				child++;
+			}
+			if (!above(low, vals[heap[child]], vals[slot])) {
+				break;
+			}
+			place(low, p, heap[child]);
+			p = child;
+		}
+		place(low, p, slot);
+	}
+
+}
@@ -0,0 +1,140 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the bytes of a stream (such as stdin) in order, as a ByteSource of unknown size
+ * The stream is read ahead on another thread, up to BLOCKS_AHEAD blocks, so reading overlaps with the work on the bytes read
+ * Parts must be mapped in order (each from at or after the last part's offset), and a part shorter than asked for ends the stream
+ */
+class StreamSource implements ByteSource {
+	/** Bytes read from the stream at a time, and the largest part mapped */
+	private static final int BLOCK_SIZE = 1 << 22;
+	/** Blocks read ahead of the ones mapped */
+	private static final int BLOCKS_AHEAD = 8;
+
+	private InputStream in;
+	/** Blocks read, an empty block at the end of the stream */
+	private ArrayBlockingQueue<byte[]> blocks;
+	private Thread readThread;
+	private volatile IOException error;
+
+	/** Bytes taken from the blocks, from bufOffset */
+	private byte[] buf;
+	private long bufOffset;
+	private int len;
+	private boolean ended;
+
+	/** Constructor
+	 * @param is - stream to read (decompressed as read if gzip or BGZF)
+	 * @throws IOException - if the stream cannot be read
+	 */
+	public StreamSource(InputStream is) throws IOException {
+		in = new BufferedInputStream(is, 1 << 16);
+		in.mark(2);
+		boolean gzip = in.read() == 0x1F && in.read() == 0x8B;
+		in.reset();
+		if (gzip) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		blocks = new ArrayBlockingQueue<byte[]>(BLOCKS_AHEAD);
+		buf = new byte[2 * BLOCK_SIZE];
+		bufOffset = 0;
+		len = 0;
+		ended = false;
+
+		readThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readBlocks();
+			}
+		}, "stream-read");
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	/** Read the stream into blocks until its end (or an error) */
+	private void readBlocks() {
+		try {
+			while (true) {
+				byte[] b = new byte[BLOCK_SIZE];
+				int n = 0;
+				int k = 0;
+				while (n < b.length && (k = in.read(b, n, b.length - n)) >= 0) {
+					n += k;
+				}
+				if (n > 0) {
+					blocks.put(n == b.length ? b : Arrays.copyOf(b, n));
+				}
+				if (k < 0) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			blocks.put(new byte[0]);
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/** Size not known ahead (see map) */
+	@Override
+	public long size() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public ByteBuffer map(long offset, int length) throws IOException {
+		if (offset < bufOffset || offset > bufOffset + len) {
+			throw new IOException("Stream read out of order at offset " + offset);
+		}
+
+		//-- Keep the bytes from offset, then take blocks until there are enough --
+		int keep = (int) (bufOffset + len - offset);
+		System.arraycopy(buf, len - keep, buf, 0, keep);
+		bufOffset = offset;
+		len = keep;
+		while (len < length && !ended) {
+			byte[] b;
+			try {
+				b = blocks.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Stream read interrupted");
+			}
+			if (b.length == 0) {
+				ended = true;
+				if (error != null) {
+					throw error;
+				}
+				break;
+			}
+			if (len + b.length > buf.length) {
+				buf = Arrays.copyOf(buf, len + b.length);
+			}
+			System.arraycopy(b, 0, buf, len, b.length);
+			len += b.length;
+		}
+		return ByteBuffer.wrap(buf, 0, Math.min(length, len)).slice();
+	}
+
+	@Override
+	public int getMapSize() {
+		return BLOCK_SIZE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		readThread.interrupt();
+		in.close();
+	}
+
+}
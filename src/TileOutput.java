@@ -0,0 +1,90 @@
+import java.io.IOException;
+
+/**
+ * Output of a tile of a chromosome (see ChromTile), held in memory until the tiles before it are written, then written to the chromosome's output
+ * Lines held for a bedGraph or .cmbf output are copied to it as they are, those for any other output (bigWig) are written to it line by line
+ */
+class TileOutput implements TrackWriter {
+	/** Lines held as bedGraph, null if held as .cmbf sections */
+	private BedGraphWriter bedGraph;
+	/** Lines held as .cmbf sections, null if held as bedGraph */
+	private CmbfWriter cmbf;
+	/** Writer of the lines held, merging runs if the chromosome's output does */
+	private TrackWriter held;
+
+	//-- Chromosome output, one of --
+	private BedGraphWriter bedGraphOut;
+	private CmbfWriter cmbfOut;
+	/** Output written line by line */
+	private TrackWriter linesOut;
+	/** Writer of the chromosome output merging runs, null if not merging (a run is not merged across tiles) */
+	private RunLengthWriter runsOut;
+
+	/** Constructor for a tile of a bedGraph output
+	 * @param out - chromosome output
+	 * @param runs - writer merging runs into out, or null if not merging
+	 */
+	public TileOutput(BedGraphWriter out, RunLengthWriter runs) {
+		bedGraph = new BedGraphWriter();
+		bedGraphOut = out;
+		runsOut = runs;
+		held = runs != null ? new RunLengthWriter(bedGraph, true) : bedGraph;
+	}
+
+	/** Constructor for a tile of a .cmbf output
+	 * @param out - chromosome output
+	 * @param runs - writer merging runs into out, or null if not merging
+	 */
+	public TileOutput(CmbfWriter out, RunLengthWriter runs) {
+		cmbf = new CmbfWriter();
+		cmbfOut = out;
+		runsOut = runs;
+		held = runs != null ? new RunLengthWriter(cmbf, true) : cmbf;
+	}
+
+	/** Constructor for a tile of an output written line by line (lines held as .cmbf sections, the values to 5 decimal places)
+	 * @param out - chromosome output, merging runs itself if it does
+	 */
+	public TileOutput(TrackWriter out) {
+		cmbf = new CmbfWriter();
+		linesOut = out;
+		held = cmbf;
+	}
+
+	@Override
+	public void write(String cN, int s, int e, double v) throws IOException {
+		held.write(cN, s, e, v);
+	}
+
+	/** Write the lines held to the chromosome output */
+	public void writeOut() throws IOException {
+		held.close(); // ends the run or section held last
+		if (runsOut != null) {
+			runsOut.endRun();
+		}
+		if (bedGraphOut != null) {
+			bedGraph.writeTo(bedGraphOut);
+		}
+		else if (cmbfOut != null) {
+			cmbf.writeTo(cmbfOut);
+		}
+		else {
+			cmbf.replayTo(linesOut);
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		return held.getPosition();
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		held.close();
+	}
+
+}
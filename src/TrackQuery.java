@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Looks up the lines of a cMBF track (Calculator output, .bed, .bed.gz or .cmbf) or an Integrator output overlapping regions
+ * Lines of a bedGraph track are written as they are, those of a .cmbf track to 5 decimal places as in a .bed track
+ * The track's index (see ChromIndex.open) gives the offset of a line before each region, so only the lines around it are read
+ * Regions looked up in order along a chromosome carry on from the lines already read, rather than going back to the index
+ */
+public class TrackQuery implements Closeable {
+	private ChromIndex index;
+	private HashMap<String, ChromIndex.Entry> entries;
+	/** Order of each chromosome in the file */
+	private HashMap<String, Integer> order;
+	/** Reader of a bedGraph track, null if .cmbf */
+	private BedReader bedReader;
+	/** Reader of a .cmbf track, null if bedGraph */
+	private CmbfReader cmbfReader;
+	/** Line copied from a bedGraph track */
+	private byte[] line = new byte[256];
+
+	//-- Last region looked up, to carry on from --
+	private ChromIndex.Entry lastEntry;
+	private int lastStart;
+	/** Offset of the first line of the last region's chromosome ending after its start */
+	private long resume;
+
+	//-- Options --
+	private static String trackFile;
+	private static String batchFile;
+	private static String outFile;
+	private static List<String> regionArgs;
+
+	/** Constructor
+	 * @param f - sorted track (.bed, BGZF .bed.gz or .cmbf), indexed in its sidecar file (see ChromIndex.open) if not yet
+	 * @throws IOException - if the track cannot be read, or is not sorted
+	 */
+	public TrackQuery(File f) throws IOException {
+		if (f.getName().endsWith(".bw") || f.getName().endsWith(".bigWig")) {
+			throw new IOException("bigWig files hold their own index, query them with bigWig tools (such as bigWigToBedGraph): " + f.getPath());
+		}
+		if (BgzfSource.isGzip(f) && !BgzfSource.isBgzf(f)) {
+			throw new IOException("Compressed tracks must be BGZF (compressed by bgzip, or Calculator -c) to be looked up: " + f.getPath());
+		}
+		index = ChromIndex.open(f, Runtime.getRuntime().availableProcessors(), true);
+		entries = new HashMap<String, ChromIndex.Entry>();
+		order = new HashMap<String, Integer>();
+		for (ChromIndex.Entry e : index.getEntries()) {
+			entries.put(e.getChrom(), e);
+			order.put(e.getChrom(), order.size());
+		}
+		if (index.isBinary()) {
+			cmbfReader = new CmbfReader(f);
+		}
+		else {
+			bedReader = new BedReader(f, 0, Long.MAX_VALUE, true);
+		}
+	}
+
+	/**
+	 * Write the lines overlapping a region
+	 * @param chrom - chromosome
+	 * @param start - region start (0-based)
+	 * @param end - region end
+	 * @param out - writer of the lines found
+	 * @return number of lines found
+	 */
+	public long query(String chrom, int start, int end, BedGraphWriter out) throws IOException {
+		ChromIndex.Entry e = entries.get(chrom);
+		if (e == null || end <= start) {
+			return 0;
+		}
+		long n = 0;
+		if (cmbfReader != null) {
+			cmbfReader.seek(e.offsetAt(start), start);
+			while (cmbfReader.next() && cmbfReader.getOffset() <= e.getTo() && cmbfReader.getStart() < end) {
+				if (cmbfReader.getEnd() > start) {
+					out.write(chrom, cmbfReader.getStart(), cmbfReader.getEnd(), cmbfReader.getValue());
+					n++;
+				}
+			}
+			return n;
+		}
+
+		long from = e.offsetAt(start);
+		if (e == lastEntry && start >= lastStart) {
+			from = Math.max(from, resume); // lines before resume end before the last region's start
+		}
+		bedReader.seek(from);
+		long first = -1;
+		while (bedReader.next() && bedReader.getLineOffset() < e.getTo() && bedReader.getStart() < end) {
+			if (bedReader.getEnd() > start) {
+				if (first < 0) {
+					first = bedReader.getLineOffset();
+				}
+				int len = (int) (bedReader.getNextOffset() - bedReader.getLineOffset());
+				if (len >= line.length) {
+					line = new byte[len + 1];
+				}
+				len = bedReader.copyLine(line);
+				if (line[len - 1] != '\n') { // last line of the file
+					line[len++] = '\n';
+				}
+				out.write(line, 0, len);
+				n++;
+			}
+		}
+		lastEntry = e;
+		lastStart = start;
+		resume = first >= 0 ? first : Math.min(bedReader.getLineOffset(), e.getTo());
+		return n;
+	}
+
+	/**
+	 * Sort regions in the order they are found in the track (chromosomes in file order, then by start), for looking them up in turn
+	 * Regions on chromosomes not in the track go last
+	 * @param chroms - chromosome of each region
+	 * @param starts - start of each region
+	 * @return indexes of the regions, in order
+	 */
+	public Integer[] sequentialOrder(final String[] chroms, final int[] starts) {
+		Integer[] sorted = new Integer[chroms.length];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				Integer oa = order.get(chroms[a]);
+				Integer ob = order.get(chroms[b]);
+				int ca = oa == null ? Integer.MAX_VALUE : oa;
+				int cb = ob == null ? Integer.MAX_VALUE : ob;
+				if (ca != cb) {
+					return ca < cb ? -1 : 1;
+				}
+				return starts[a] < starts[b] ? -1 : starts[a] > starts[b] ? 1 : 0;
+			}
+		});
+		return sorted;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (cmbfReader != null) {
+			cmbfReader.close();
+		}
+		else {
+			bedReader.close();
+		}
+	}
+
+	/**
+	 * Main method
+	 *@param args - options, then the track and regions to look up (chr, chr:pos or chr:start-end, 1-based and inclusive as in tabix)
+	 */
+	public static void main(String[] args) {
+		parseOptions(args);
+
+		TrackQuery query = null;
+		try {
+			query = new TrackQuery(new File(trackFile));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		try {
+			OutputStream os = outFile == null ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(outFile);
+			BedGraphWriter pw = new BedGraphWriter(os, false);
+			for (String region : regionArgs) {
+				String[] parsed = parseRegion(region);
+				if (parsed == null) {
+					System.err.println("Not a region (chr, chr:pos or chr:start-end): " + region);
+					System.exit(1);
+				}
+				query.query(parsed[0], Integer.parseInt(parsed[1]), Integer.parseInt(parsed[2]), pw);
+			}
+			if (batchFile != null) {
+				batch(query, new File(batchFile), pw);
+			}
+			pw.close();
+			query.close();
+		} catch (FileNotFoundException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Look up each region of a .bed file (chromosome, start, end), in the order they are found in the track
+	 * Each region's lines follow a line of "#" and the region's own line
+	 * @param query - track looked up
+	 * @param f - regions file
+	 * @param pw - output
+	 */
+	private static void batch(TrackQuery query, File f, BedGraphWriter pw) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		ArrayList<String> chroms = new ArrayList<String>();
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.ISO_8859_1), 1 << 16);
+		} catch (FileNotFoundException e) {
+			throw new FileNotFoundException("File not found: " + f.getPath());
+		}
+		int lineNum = 0;
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			lineNum++;
+			if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			try {
+				ranges.add(new int[] {Integer.parseInt(fields[1]), Integer.parseInt(fields[2])});
+			} catch (RuntimeException e) {
+				reader.close();
+				throw new IOException("Not a region (chromosome, start, end) at line " + lineNum + " of " + f.getPath() + ": " + line);
+			}
+			chroms.add(fields[0]);
+			lines.add(line);
+		}
+		reader.close();
+
+		String[] c = chroms.toArray(new String[0]);
+		int[] s = new int[c.length];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = ranges.get(i)[0];
+		}
+		for (int i : query.sequentialOrder(c, s)) {
+			byte[] header = ("#" + lines.get(i) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+			pw.write(header, 0, header.length);
+			query.query(c[i], ranges.get(i)[0], ranges.get(i)[1], pw);
+		}
+	}
+
+	/**
+	 * Parse a region given as chr, chr:pos or chr:start-end (1-based and inclusive, commas allowed)
+	 * @return chromosome, 0-based start and end, or null if not a region
+	 */
+	static String[] parseRegion(String region) {
+		int colon = region.lastIndexOf(':');
+		if (colon < 0) {
+			return new String[] {region, "0", String.valueOf(Integer.MAX_VALUE)};
+		}
+		String range = region.substring(colon + 1).replace(",", "");
+		int dash = range.indexOf('-');
+		try {
+			long start = Long.parseLong(dash < 0 ? range : range.substring(0, dash));
+			long end = dash < 0 ? start : Long.parseLong(range.substring(dash + 1));
+			if (start < 1 || end < start || end > Integer.MAX_VALUE) {
+				return null;
+			}
+			return new String[] {region.substring(0, colon), String.valueOf(start - 1), String.valueOf(end)};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse commandline options using CLI
+	 * @param args - commandline arguments from main method
+	 */
+	private static void parseOptions(String[] args) {
+		Options options = new Options();
+
+		Option batch = new Option("b", "batch", true, "[opt] look up each region of this bed file (chromosome, start, end), in the order they are found in the track, each region's lines after a line of # and the region's own line");
+		batch.setRequired(false);
+		options.addOption(batch);
+
+		Option output = new Option("o", "output", true, "[opt] output file, default: stdout");
+		output.setRequired(false);
+		options.addOption(output);
+
+		Option help = new Option("h", "help", false, "");
+		options.addOption(help);
+
+		String syntax = "TrackQuery [options] [track.bed|track.bed.gz|track.cmbf] [chr:start-end ...]";
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			formatter.printHelp(syntax, options);
+			System.exit(1);
+		}
+		if (cmd.hasOption("h")) {
+			formatter.printHelp(syntax, options);
+			System.exit(0);
+		}
+
+		batchFile = cmd.getOptionValue("b");
+		outFile = cmd.getOptionValue("o");
+		List<String> fileArgs = cmd.getArgList();
+		if (fileArgs.isEmpty() || (fileArgs.size() == 1 && batchFile == null)) {
+			System.err.println("Must include a track, and regions to look up (or -b)");
+			formatter.printHelp(syntax, options);
+			System.exit(1);
+		}
+		trackFile = fileArgs.get(0);
+		regionArgs = fileArgs.subList(1, fileArgs.size());
+	}
+
+}
@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the lines (chr start end value) of a cMBF track
+ * From bedGraph text (BedReader) or the binary .cmbf format (CmbfReader)
+ */
+interface TrackReader extends Closeable {
+
+	/**
+	 * Advance to the next line
+	 * @return false if there are no more lines in the range
+	 */
+	public boolean next() throws IOException;
+
+	//-- Get current line --
+	public String getChrom();
+
+	public int getStart();
+
+	public int getEnd();
+
+	public double getValue();
+
+}
@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the lines (chr start end value) of a cMBF track
+ * As bedGraph text (BedGraphWriter) or the binary .cmbf format (CmbfWriter)
+ */
+interface TrackWriter extends Closeable {
+
+	/**
+	 * Write a line
+	 * @param cN - chromosome
+	 * @param s - start
+	 * @param e - end
+	 * @param v - value
+	 */
+	public void write(String cN, int s, int e, double v) throws IOException;
+
+	/** Position after the last byte written to a shared channel */
+	public long getPosition();
+
+	/** Write the buffer to the file */
+	public void flush() throws IOException;
+
+}
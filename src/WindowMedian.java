@@ -0,0 +1,22 @@
+/**
+ * Running median of the read counts in a moving window (see IntWindow)
+ * Counts enter at the back and leave from the front, in window order
+ * Exact (SlidingMedian), or approximate in fixed memory (MedianSketch)
+ */
+interface WindowMedian {
+
+	/** Add a read count to the back of the window */
+	public void add(int rc);
+
+	/** Remove the oldest read count from the front of the window
+	 * @param rc - the oldest read count
+	 */
+	public void evict(int rc);
+
+	/** Lower of the middle two values (the middle value if the window is odd) */
+	public int lowMiddle();
+
+	/** Upper of the middle two values (the middle value if the window is odd) */
+	public int highMiddle();
+
+}
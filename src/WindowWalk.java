@@ -0,0 +1,259 @@
+import java.io.IOException;
+
+/**
+ * Walks the window along a chromosome's bins, giving the cMBF of each interval in turn
+ * The window is moved over a block of positions at a time, keeping each one's read count and noise estimate,
+ * then the block's cMBFs are calculated together (see CmbfTransform) and given in turn
+ * Read as a track (see TrackReader), so the cMBFs are written (see ChromTile) or integrated as they are calculated (see CalcIntegrateChrom)
+ */
+class WindowWalk implements TrackReader {
+	private BinReader reader;
+	/** False if the reader has no bins left */
+	private boolean more;
+	private IntWindow window;
+	/** Positions given: [outFrom, outTo) */
+	private int outFrom;
+	private int outTo;
+	/** True once the end of the chromosome is reached, with the last window positions left to give */
+	private boolean ending;
+	private int lastIndex;
+	/** Time reading lines and moving the window for 1 in RunMetrics.SAMPLE positions, and the cMBFs of each block (see RunMetrics) */
+	private boolean timing = false;
+	private boolean timingLine = false;
+	private long parseNanos = 0;
+	private long stepNanos = 0;
+	private long positions = 0;
+
+	//-- Block of positions, with their cMBFs once calculated --
+	private static final int BLOCK = 256;
+	private int[] blockStarts = new int[BLOCK];
+	private int[] blockEnds = new int[BLOCK];
+	private double[] blockCounts = new double[BLOCK];
+	private double[] blockNoise = new double[BLOCK];
+	private double[] blockcMBFs = new double[BLOCK];
+	/** Positions in the block */
+	private int blockSize = 0;
+	/** Next position of the block to give */
+	private int blockNext = 0;
+
+	//-- Current line --
+	private String chrom;
+	private int start;
+	private int end;
+	private double value;
+
+	/** Constructor for the positions in a range of a chromosome
+	 * @param r - reader holding the window's first bin (not closed on close)
+	 * @param m - false if the reader has no bins left
+	 * @param w - empty window centered on its first position
+	 * @param oF - first position to give
+	 * @param oT - position after the last to give
+	 */
+	public WindowWalk(BinReader r, boolean m, IntWindow w, int oF, int oT) {
+		reader = r;
+		more = m;
+		window = w;
+		outFrom = oF;
+		outTo = oT;
+		ending = false;
+	}
+
+	/**
+	 * Walk for a whole chromosome
+	 * @param r - reader of the chromosome's bins (not closed on close)
+	 * @param wS - window size (in bp)
+	 * @param iS - interval size
+	 * @param mM - median multiple
+	 * @return the walk, or null if the chromosome has no bins
+	 */
+	public static WindowWalk ofChrom(BinReader r, int wS, int iS, double mM) throws IOException {
+		if (!r.next()) {
+			return null;
+		}
+		IntWindow w = new IntWindow(r.getChrom(), wS, iS, mM, r.getStart());
+		return new WindowWalk(r, true, w, r.getStart(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Give the next position and its cMBF, calculating the next block if the last is all given
+	 * @return false if there are no positions left
+	 */
+	@Override
+	public boolean next() throws IOException {
+		if (blockNext == blockSize && !nextBlock()) {
+			return false;
+		}
+		start = blockStarts[blockNext];
+		end = blockEnds[blockNext];
+		value = blockcMBFs[blockNext];
+		blockNext++;
+		return true;
+	}
+
+	/**
+	 * Move the window over the next block of positions, then calculate their cMBFs
+	 * @return false if there are no positions left
+	 */
+	private boolean nextBlock() throws IOException {
+		blockSize = 0;
+		blockNext = 0;
+		while (blockSize < BLOCK) {
+			if (timing && positions++ % RunMetrics.SAMPLE == 0) {
+				timingLine = true;
+				long t = System.nanoTime();
+				boolean moved = move();
+				stepNanos += System.nanoTime() - t;
+				timingLine = false;
+				if (!moved) {
+					break;
+				}
+			}
+			else if (!move()) {
+				break;
+			}
+		}
+		if (blockSize == 0) {
+			return false;
+		}
+
+		long t = timing ? System.nanoTime() : 0;
+		CmbfTransform.transform(blockCounts, blockNoise, blockcMBFs, blockSize);
+		for (int i = 0; i < blockSize; i++) {
+			if (blockcMBFs[i] < 0 || blockcMBFs[i] > 1) {
+				System.err.println("cMBF cannot be outside the range of 0 to 1: " + blockcMBFs[i] + "\n"
+						+ chrom + "\t" + blockStarts[i] + "\t" + blockEnds[i] + "\t" + blockCounts[i]);
+				System.exit(1);
+			}
+		}
+		if (timing) {
+			stepNanos += (System.nanoTime() - t) / RunMetrics.SAMPLE; // as if sampled
+		}
+		return true;
+	}
+
+	/**
+	 * Move the window to the next position to give, and add it to the block
+	 * @return false if there are no positions left
+	 */
+	private boolean move() throws IOException {
+		if (!ending) {
+			// Parse through file for position index and its read count
+			while (more && window.getPos() < outTo) {
+				if (window.toFill() > 0) {
+					window.insert(reader.getStart(), reader.getEnd(), reader.getCount());
+					if (timingLine) {
+						long t = System.nanoTime();
+						more = reader.next();
+						parseNanos += System.nanoTime() - t;
+					}
+					else {
+						more = reader.next();
+					}
+				}
+
+				if (window.full()) { // Filled window, calculate stats for current position and increment (middle indices)
+					boolean given = window.getPos() >= outFrom;
+					if (given) {
+						setLine();
+					}
+
+					if (!more) {
+						window.setEndOfChrom();
+					}
+
+					window.incrCenter();
+					if (given) {
+						return true;
+					}
+				}
+			}
+
+			if (window.getPos() >= outTo) {
+				return false;
+			}
+
+			// Reached end of chromosome, finish computing for last indices
+			ending = true;
+			window.setEndOfChrom();
+
+			if (!window.full()) { // Reached end of chromosome, but window not filled
+				window.setSmallerWindowSize();
+			}
+
+			lastIndex = window.getLastStartIndex();
+		}
+
+		while (window.getPos() <= lastIndex && window.getPos() < outTo) {
+			boolean given = window.getPos() >= outFrom;
+			if (given) {
+				setLine();
+			}
+			window.incrCenter();
+			if (given) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Time the stages of the walk from here on (see RunMetrics), or stop */
+	public void setTiming(boolean t) {
+		timing = t;
+	}
+
+	/** Sampled time reading lines while timing, since last taken */
+	public long takeParseNanos() {
+		long t = parseNanos;
+		parseNanos = 0;
+		return t;
+	}
+
+	/** Sampled time moving the window and calculating cMBFs (reading lines included) while timing, since last taken */
+	public long takeStepNanos() {
+		long t = stepNanos;
+		stepNanos = 0;
+		return t;
+	}
+
+	/** Add the window's current interval, with its read count and noise estimate, to the block */
+	private void setLine() {
+		try {
+			chrom = window.getChromNum();
+			blockStarts[blockSize] = window.getIndexStart();
+			blockEnds[blockSize] = window.getIndexEnd();
+			blockCounts[blockSize] = window.getIndexReadCount();
+			blockNoise[blockSize] = window.calcNoise();
+			blockSize++;
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	//-- Get current line --
+	@Override
+	public String getChrom() {
+		return chrom;
+	}
+
+	@Override
+	public int getStart() {
+		return start;
+	}
+
+	@Override
+	public int getEnd() {
+		return end;
+	}
+
+	/** cMBF of the current interval */
+	@Override
+	public double getValue() {
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+}